@@ -11,27 +11,191 @@
  * Table of Contents:
  * public static void main(String[] args)
  * public static void setConfigParams()
+ * public static void parseLayerTypes()
+ * public static String readString(String key, String defaultVal)
+ * public static int readInt(String key, String defaultVal)
+ * public static long readLong(String key, String defaultVal)
+ * public static double readDouble(String key, String defaultVal)
+ * public static boolean readBoolean(String key, String defaultVal)
+ * public static void readConfigTargets()
  * public static int maxArrayDim()
  * public static double sigmoid(double x)
  * public static double derivativeSigmoid(double x)
  * public static double activationFunction(double num)
  * public static double derivativeActivationFunction(double num)
+ * public static void applyOutputHead(double[] sums, double[] out, int size)
+ * public static void softmax(double[] sums, double[] out, int size)
+ * public static double logSumExp(double[] sums, int size)
+ * public static double crossEntropy(double[] target, double[] output, int size)
  * public static void echoConfigParams()
  * public static void allocateArrayMemory()
  * public static void populateArrays()
+ * public static void buildDatasetFileList()
+ * public static void keepShard(int shard, int shards)
+ * public static void readDatasetManifest()
+ * public static void loadTestCase(int tCase)
+ * public static void readCaseFile(String fileName, double[] input)
+ * public static void downsampleImage(double[] image, double[] dest, int factor)
+ * public static int labelFromFileName(String fileName)
  * public static void populateWeightsRandom()
  * public static void train()
+ * public static void trainSingleCase()
+ * public static void applyDropout(int layer)
+ * public static void startAugmentation()
+ * public static void augmentCase(double[] source, double[] dest, SplittableRandom generator)
+ * public static double gaussian(SplittableRandom generator)
+ * public static void swapAugmentedBatch()
+ * public static void stopAugmentation()
+ * public static void gemv(double[] in, int inSize, double[][] w, double[] out, int outSize)
+ * public static void backpropLayer(double[][] w, double[] in, int inSize, double[] delta, int outSize, double scale,
+ *                                  double[] omega)
+ * public static void backpropLayer(double[][] w, double[] in, int inSize, double[] delta, int outSize, double scale,
+ *                                  double[] omega, double decay)
+ * public static void forwardLayer(double[][] w, int layer, double[] in, double[] out)
+ * public static void convForward(double[][] w, int layer, double[] in, double[] out, int channel)
+ * public static void poolForward(int layer, double[] in, double[] out)
+ * public static void backpropTypedLayer(double[][] w, int layer, double[] in, double[] delta, double scale,
+ *                                       double[] omega, double decay)
+ * public static void convOmega(double[][] w, int layer, double[] delta, double[] omega, int inChannel)
+ * public static void convUpdate(double[][] w, int layer, double[] in, double[] delta, double scale, double decay,
+ *                               int channel)
+ * public static void poolBackward(int layer, double[] in, double[] delta, double[] omega)
+ * public static void naiveGemv(double[] in, int inSize, double[][] w, double[] out, int outSize)
+ * public static int tuneKernelBlockSize()
+ * public static void benchmarkKernels()
  * public static void runSingleOutput()
+ * public static void forwardPass(double[][][] w, double[][] layerActivations)
+ * public static void forwardHidden(double[][][] w, double[][] layerActivations)
+ * public static void compileForwardPass()
+ * public static String generateForwardSource(String className)
+ * public static double[][] allocateWorkspace()
+ * public static void runInference(double[] input, double[] output)
+ * public static void computeInference(double[] input, double[] output)
+ * public static void allocateInferenceCache()
+ * public static long hashInput(double[] input, long version)
+ * public static boolean lookupCache(long key, double[] output)
+ * public static void storeCache(long key, double[] output)
+ * public static void clearCache()
+ * public static void reportCache()
+ * public static void checkInferenceCache()
+ * public static void loadCascade()
+ * public static boolean runCascade(double[] input, double[] output)
+ * public static void reportCascade()
+ * public static void runTopK(double[] input, int k, int[] classes, double[] scores)
+ * public static double runOutputNeuron(double[] input, int node)
+ * public static void runTopKOutput()
+ * public static void reportTopK()
+ * public static void runOutputNodeOutput()
+ * public static void reportOutputNode()
  * public static void runNetworkOutput()
+ * public static void runEvaluation()
+ * public static void reportEvaluation()
+ * public static double precision(int[][] confusion, int predicted)
+ * public static double recall(int[][] confusion, int actual)
+ * public static long percentile(long[] sorted, double fraction)
+ * public static void writeEvaluation(int[][] confusion, long[] sorted, int labelled, int correct)
+ * public static String jsonString(String text)
+ * public static void measureInferenceAllocation()
+ * public static void reportStartup()
  * public static void calculateError()
  * public static void reportResults()
  * public static double generateRandWeight()
+ * public static double generateRandWeight(SplittableRandom generator)
  * public static void saveWeights()
  * public static void loadWeights()
+ * public static int weightsHeaderBytes()
+ * public static int weightsHeaderBytes(int layerCount)
+ * public static void saveWeightsBinary()
+ * public static void writeWeightRows(FileChannel channel, double[][][] w, int[] rows, int[] cols)
+ * public static void readWeightRows(FileChannel channel, double[][][] w, int[] rows, int[] cols)
+ * public static ByteBuffer readWeightsHeader(FileChannel channel)
+ * public static ByteBuffer readWeightsHeader(FileChannel channel, String fileName, int[] layers)
+ * public static void loadWeightsBinary()
+ * public static void loadWeightsOffHeap()
+ * public static void forwardPassOffHeap(double[][] layerActivations)
+ * public static void gemvOffHeap(double[] in, int inSize, DoubleBuffer w, double[] out, int outSize)
+ * public static double[] parseSweepList(String key, String defaultVal)
+ * public static String[] parseSweepNetConfigs(String key, String defaultVal)
+ * public static Trial createTrial(String netConfig, double trialLambda, double randomRange, double trialErrorThreshold,
+ *                                 SplittableRandom trialRandom)
+ * public static List<Trial> createSweepTrials()
+ * public static double backpropCase(double[][][] w, int[] layers, double stepLambda, double[][] act, double[][] th,
+ *                                   double[][] ps, double[] input, double[] target)
+ * public static void trainTrial(Trial trial, int targetIters)
+ * public static void runSweep()
+ * public static void reportSweep(List<Trial> trials)
+ * public static void writeWeights(DataOutputStream out, double[][][] w)
+ * public static void readWeights(DataInputStream in, double[][][] w, double scale, boolean accumulate)
+ * public static void runCoordinator()
+ * public static void runWorker()
+ * public static void trainHogwild()
+ * public static void compareHogwild()
+ * public static double[][][] copyWeights(double[][][] w)
+ * public static void startOnlineLearning()
+ * public static void publishModel(double[][][] w)
+ * public static boolean submitSample(double[] input, double[] target)
+ * public static void stopOnlineLearning()
+ * public static void runOnlineLearning()
+ * public static String servedWeightsFileName()
+ * public static double[][][] readWeightsFile(String fileName, int[] layers)
+ * public static double[][][] readWeightsFile(String fileName, int[] layers, int[] rows, int[] cols)
+ * public static boolean reloadModel(String fileName)
+ * public static void startModelWatcher()
+ * public static long lastModifiedMillis(Path path)
+ * public static void serveFromStdin()
+ * public static void startLogging()
+ * public static void logProgress(int iteration, double error)
+ * public static void logReport(String text)
+ * public static StringBuilder formatLogRecord(LogRecord record, StringBuilder batch)
+ * public static void flushLog()
+ * public static void stopLogging()
  * 
  */
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Properties;                 // used to read in config file
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
 
 public class NLayer
 {
@@ -47,6 +211,73 @@ public class NLayer
    public static boolean useRandomWeights;
    public static boolean willSaveWeights;
    public static boolean useLoadedWeights;
+   public static boolean checkInferenceAllocation;   // reports bytes allocated per inference call after warm-up
+   public static boolean useOffHeapWeights;          // inference reads weights from native memory instead of the heap
+   public static boolean mapWeights;                 // off-heap weights are memory-mapped read-only from the checkpoint
+   public static int kernelBlockSize;                // columns per cache block in the matrix kernels, 0 to tune on startup
+   public static boolean benchmarkKernels;           // times the blocked kernels against the original loops
+   public static boolean reportStartupTime;          // prints the time from JVM start to the first classified case
+   public static boolean compileModel;               // generates and loads a forward pass specialized to netConfig
+   public static boolean reuseForwardError;          // training error is taken from the forward pass before each update
+   public static boolean runSweep;                   // trains a grid or random search of networks instead of one network
+   public static int sweepThreads;                   // trials trained at once, 0 for one per core
+   public static int sweepRungIters;                 // iterations every trial gets before the first round of cuts
+   public static int sweepEta;                       // each round keeps 1 / sweepEta of the trials and multiplies the budget
+   public static int sweepRandomTrials;              // number of random-search trials, 0 for the full grid
+   public static String sweepResultsFileName;
+   public static String[] sweepNetConfigs;           // layer sizes of every swept network
+   public static double[] sweepLambdas;
+   public static double[] sweepRandomRanges;
+   public static double[] sweepErrorThresholds;
+   public static boolean labelsFromFileNames;        // target outputs come from the test case file names, not the config
+   public static String datasetManifest;             // file listing the path, label and split of every case, or empty
+   public static boolean augmentImages;              // train() uses randomly shifted, flipped and noisy copies of the cases
+   public static int augmentThreads;                 // background threads preparing augmented batches
+   public static int imageRows, imageCols;           // layout of the image at the start of each case's inputs
+   public static int augmentMaxShift;                // largest shift in pixels, in each direction
+   public static boolean augmentFlip;                // mirrors half of the images left to right
+   public static double augmentNoise;                // standard deviation of the noise added to nonzero pixels
+   public static double augmentBrightness;           // largest relative change in brightness
+   public static boolean onlineLearning;             // inference keeps learning from labelled samples in the background
+   public static double onlineLambda;                // learning factor for online updates
+   public static int onlineQueueSize;                // samples that can wait for the learner before new ones are refused
+   public static int onlinePublishInterval;          // online steps between snapshots published to inference
+   public static int onlineRounds;                   // times the loaded cases are streamed to the learner
+   public static boolean serveModel;                 // classifies files named on standard input once the run is done
+   public static int reloadPollMillis;               // how often the served weights file is checked for changes, 0 never
+   public static int reloadWarmupPasses;             // forward passes run on new weights before they are swapped in
+   public static int inferenceCacheSize;             // inference results remembered by input hash, 0 for no cache
+   public static boolean checkInferenceCache;        // checks that repeated cases hit the cache and match a forward pass
+   public static int topK;                           // inference only ranks the best topK classes, 0 for every output
+   public static int outputNode;                     // inference only finds this output, counting from 1, 0 for every output
+   public static int inputDownsample;                // cases are average-pooled by this factor in each direction, 1 to keep them
+   public static String cascadeWeightsFileName;      // small model that answers confident cases first, empty for no cascade
+   public static String cascadeNetConfig;
+   public static int cascadeDownsample;              // pooling factor of the small model's input
+   public static double cascadeThreshold;            // smallest top output the small model may answer with
+   public static double cascadeMargin;               // smallest lead its top output needs over the second
+   public static boolean parallelConvolution;        // large convolution layers split their channels across threads
+   public static double dropoutRate;                 // chance train() drops each fully connected hidden node, 0 for none
+   public static double weightDecay;                 // L2 penalty train() applies to the weights, 0 for none
+   public static String outputHead;                  // "sigmoid" with squared error, or "softmax" with cross-entropy
+   public static String evaluationFileName;          // JSON report of the evaluation mode, empty to print the truth table
+   public static int evaluationBatchSize;            // cases each evaluation task runs through the network in a row
+   public static double minAccuracy;                 // evaluation accuracy below which the run fails, 0 for no check
+   public static String logFormat;                   // "text" for the usual console lines, or "json" for one record per line
+   public static boolean quietLogging;               // progress lines and the truth table are left out of the log
+   public static int logBufferSize;                  // records that can wait for the log writer before new ones are dropped
+   public static boolean softmaxHead;                // the output layer is a softmax trained on cross-entropy
+   public static String distributedRole;             // "none", "coordinator" or "worker"
+   public static String coordinatorHost;
+   public static int coordinatorPort;
+   public static int numWorkers;
+   public static int workerId;                       // a worker trains on the cases whose index % numWorkers is workerId
+   public static int distributedCases;               // cases across every worker's shard, which the coordinator never loads
+   public static int averagingInterval;              // iterations each worker runs between weight averaging rounds
+   public static int hogwildThreads;                 // threads updating the shared weights without locks, 0 to train normally
+   public static boolean compareHogwild;             // also trains single-threaded from the same weights and compares
+   public static double hogwildTolerance;            // fraction Hogwild's final error may exceed the single thread's
+   public static long randomSeed;                    // seed for every random number the network uses
    public static int numTestCases;
    public static double defaultWeightVal;
 
@@ -65,6 +296,7 @@ public class NLayer
    public static String[] netConfigStr;
    public static String configFileName;
    public static String weightsFileName;
+   public static String binaryWeightsFileName;     // binary checkpoint, empty if not used
    public static String tCaseActivationFileName;
    public static int keepAlive;
    public static int runningNum;
@@ -73,19 +305,71 @@ public class NLayer
 * Declare all arrays, including arrays for test cases, omegas, psi values, and weight calculations.
 */
    public static double[][] testCases;             // array with the truth table for test cases
+   public static double[][] trainingInputs;        // inputs train() is using, either testCases or an augmented copy
+   public static ArrayBlockingQueue<double[][]> freeBatches;    // augmentation buffers waiting to be filled
+   public static ArrayBlockingQueue<double[][]> readyBatches;   // augmented batches waiting to be trained on
+   public static ExecutorService augmentPool;
+   public static int augmentedBatchesUsed;
+   public static AtomicReference<double[][][]> servingWeights;      // weights inference reads while learning online
+   public static double[][][] onlineWeights;       // private copy the online learner updates
+   public static ArrayBlockingQueue<double[][]> onlineSamples;  // queued {input, target} pairs for the online learner
+   public static Thread onlineLearner;
+   public static ArrayBlockingQueue<LogRecord> logRecords;     // records waiting for the log writer, null to print directly
+   public static Thread logWriter;
+   public static volatile boolean logStopping;
+   public static AtomicLong logDropped;            // progress records dropped because the log writer was behind
+   public static volatile boolean onlineStopping;
+   public static int onlineStepsTaken;
+   public static volatile long modelVersion;       // number of models swapped into servingWeights by publishModel
+   public static Thread modelWatcher;
+   public static long[] cacheKeys;                 // input hash of each cache slot, grouped into sets of CACHE_WAYS
+   public static long[] cacheStamps;               // when each slot was last used, 0 if it is empty
+   public static double[][] cacheOutputs;          // outputs remembered in each slot
+   public static long[] cacheClocks;               // use counter of each set, which its slots' stamps come from
+   public static Object[] cacheLocks;              // one lock per set, so lookups in different sets never wait
+   public static LongAdder cacheHits, cacheMisses;
    public static double[][] targetOutput;          // array with the expected outputs for test cases
    public static double[][] calculatedOutputs;     // array with the generated outputs for test cases
+   public static int[][] topClasses;               // best topK output nodes of each test case, best first
+   public static double[][] topScores;             // outputs of the nodes in topClasses
+   public static double[] nodeOutputs;             // output of outputNode for each test case
+   public static int[] predictedClasses;           // highest output node of each test case in the evaluation mode
+   public static long[] caseLatencies;             // nanoseconds each test case's inference took in the evaluation mode
+   public static long evaluationNanos;             // wall time of the whole evaluation
+   public static int[] cascadeLayers;              // layer sizes of the small cascade model
+   public static double[][][] cascadeWeights;      // weights of the small cascade model, null if there is no cascade
+   public static ThreadLocal<double[][]> cascadeWorkspace;     // per-thread activation buffers of the small model
+   public static AtomicLong cascadeAnswered;       // inferences the small model answered
+   public static AtomicLong cascadePassed;         // inferences the small model passed on to the full model
+   public static String[] caseFileNames;           // file holding each test case's activations
+   public static int[] caseLabels;                 // class of each test case, -1 if it is not known
+   public static int[] configTargetCases;          // case number of each test case in the config's targetOutput keys
+   public static double[][] configTargets;         // targetOutput keys of the config, by case number and output
    public static double[][] activations;           // one activations array for all layers
    public static double[][][] weights;             // one weight array for all layers
    public static double[][] theta;                 // one theta array for all layers
    public static double[][] psi;
    public static int[] nLayers;
+   public static int[] layerTypes;                 // LAYER_DENSE, LAYER_CONV, LAYER_MAX_POOL or LAYER_AVG_POOL for each layer
+   public static int[] layerChannels, layerRows, layerCols;    // shape of each layer's activations as image planes
+   public static int[] layerKernel;                // filter size of convolution layers, window size of pooling layers
+   public static int[] weightRows, weightCols;     // shape of each layer's weight matrix
+   public static boolean hasConvLayers;            // netConfig has convolution or pooling layers
+   public static long[][] dropoutMasks;            // bit set of the hidden nodes kept in the current case, by layer
+   public static SplittableRandom dropoutRandom;   // generator for the dropout masks, split from random
+   public static ThreadLocal<double[][]> inferenceWorkspace;   // per-thread activation buffers reused across inferences
+   public static DoubleBuffer[] offHeapWeights;    // each layer's weights in native memory, laid out as [gamma][beta]
+   public static CompiledForward compiledForward;  // forward pass specialized to netConfig, null for the generic one
 
    public static long startingTime;
+   public static long firstResultNanos;            // when the first case was classified, 0 until then
    public static long endingTime;
    public static long elapsedTimeMilli;
    public static Properties testActivations;
    public static Properties properties;
+   public static List<String> configErrors;        // problems found while reading the config file
+   public static List<String> failedChecks;        // self-checks that failed this run, which make it exit with status 1
+   public static SplittableRandom random;          // generator seeded with randomSeed, split for each independent stream
 
    public static int n;
    public static int numLayers;
@@ -99,6 +383,180 @@ public class NLayer
    public static String ANSI_BOLD = "\u001B[1m";
    public static String ANSI_RESET = "\u001B[0m";
 
+/*
+ * Marker at the start of every binary weights checkpoint, the bytes "NLAY".
+ */
+   public static final int WEIGHTS_MAGIC = 0x4E4C4159;
+
+/*
+ * Bytes of a binary checkpoint read or written at a time, so no buffer ever has to hold a whole model.
+ */
+   public static final int CHECKPOINT_CHUNK_BYTES = 1 << 20;
+
+/*
+ * Rows of a layer filled by each split of the generator when randomizing weights.
+ */
+   public static final int RANDOM_BLOCK_ROWS = 256;
+
+/*
+ * Slots in each set of the inference cache. An input can only be cached in the set its hash picks, and the least
+ * recently used slot of that set is the one replaced.
+ */
+   public static final int CACHE_WAYS = 4;
+
+/*
+ * Held while a model is being reloaded, so that two reloads never race to publish.
+ */
+   public static final Object RELOAD_LOCK = new Object();
+
+/*
+ * Held while a model is published, so that the serving weights and the model version move on together. It is separate
+ * from the cache's locks, so publishing never holds up inference.
+ */
+   public static final Object PUBLISH_LOCK = new Object();
+
+/*
+ * Layer types that can appear in netConfig. A plain number is a fully connected layer, "c8x5" is a convolution layer
+ * with 8 channels of 5 by 5 filters, and "m2" or "a2" pools every 2 by 2 window by its maximum or average.
+ */
+   public static final int LAYER_DENSE = 0;
+   public static final int LAYER_CONV = 1;
+   public static final int LAYER_MAX_POOL = 2;
+   public static final int LAYER_AVG_POOL = 3;
+
+/*
+ * Multiply-adds a convolution layer needs before its channels are split across threads.
+ */
+   public static final long PARALLEL_CONV_WORK = 1L << 18;
+
+/*
+ * Weights a fully connected layer can have for the compiled forward pass to unroll it completely into straight-line
+ * code. Larger layers keep a loop, with constant trip counts.
+ */
+   public static final int UNROLL_LIMIT = 256;
+
+/*
+ * Column block size for the matrix kernels when it is not tuned, and the most input rows the tuning times them on,
+ * so tuning never needs more than a small slice of the widest layer.
+ */
+   public static final int DEFAULT_KERNEL_BLOCK_SIZE = 256;
+   public static final int TUNING_ROWS = 1024;
+
+/*
+ * One network in a hyperparameter sweep. Each trial owns its weights and working arrays, while the test cases and
+ * target outputs are shared read-only between all trials.
+ */
+   public static class Trial
+   {
+      public String netConfig;
+      public int[] layers;
+      public double lambda;
+      public double randomRange;          // weights start in (-randomRange, randomRange)
+      public double errorThreshold;
+      public double[][][] weights;
+      public double[][] activations;
+      public double[][] theta;
+      public double[][] psi;
+      public int iters;
+      public double error = Double.MAX_VALUE;
+      public boolean converged;
+      public int stoppedAtRung = -1;      // rung in which successive halving cut this trial, -1 if it was never cut
+   } // public static class Trial
+
+/*
+ * One record for the log writer: a progress line with the iteration and error, or a block of report text. A record
+ * with a latch is only a marker, counted down once everything queued before it has been written.
+ */
+   public static class LogRecord
+   {
+      public String event;                // "progress" or "report"
+      public long elapsedNanos;           // time since the run started
+      public int iteration;
+      public double error;
+      public String text;
+      public CountDownLatch written;      // only set on a flush marker
+   } // public static class LogRecord
+
+/*
+ * A forward pass generated for one fixed layer configuration by compileForwardPass(). It takes the same arguments as
+ * forwardPass(double[][][] w, double[][] layerActivations), so new weights of the same shape can still be swapped in.
+ */
+   public interface CompiledForward
+   {
+      void forward(double[][][] w, double[][] layerActivations);
+   } // public interface CompiledForward
+
+/*
+ * Compiles generated source in memory with the system Java compiler and defines it as a hidden class next to NLayer,
+ * so nothing is written to disk and the class can be unloaded with its instance. It is kept apart from NLayer so that
+ * NLayer still loads on a runtime without the java.compiler module; this class is only loaded when a model is compiled.
+ */
+   public static class ForwardCompiler
+   {
+/*
+ * Compiles the source of a CompiledForward and returns an instance of it.
+ * 
+ * @param className name of the class in the source
+ * @param source    the Java source
+ * @return CompiledForward the compiled forward pass, or null if there is no compiler or the source did not compile
+ * @throws Throwable if the compiled class cannot be defined or constructed
+ */
+      public static CompiledForward compile(String className, String source) throws Throwable
+      {
+         JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+         if (compiler == null)
+         {
+            System.err.println("No Java compiler is available.");
+            return null;
+         }
+
+         ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+         DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+         JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///" + className + ".java"), 
+               JavaFileObject.Kind.SOURCE)
+         {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors)
+            {
+               return source;
+            }
+         };
+
+         try (JavaFileManager fileManager = new ForwardingJavaFileManager<StandardJavaFileManager>(
+               compiler.getStandardFileManager(diagnostics, null, null))
+         {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind, 
+                  FileObject sibling)
+            {
+               return new SimpleJavaFileObject(URI.create("bytes:///" + name + ".class"), kind)
+               {
+                  @Override
+                  public OutputStream openOutputStream()
+                  {
+                     return classBytes;
+                  }
+               };
+            }
+         })
+         {
+            List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"), "-g:none");
+            if (!compiler.getTask(null, fileManager, diagnostics, options, null, Arrays.asList(sourceFile)).call())
+            {
+               System.err.println(className + " did not compile:");
+               for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics())
+               {
+                  System.err.println("   " + diagnostic.getMessage(null));
+               }
+               return null;
+            }
+         } // try (JavaFileManager fileManager = ...)
+
+         MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classBytes.toByteArray(), true);
+         return (CompiledForward) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+      } // compile(String className, String source)
+   } // public static class ForwardCompiler
+
 /*
  * The main method that will either run or train the neural network. The method sets and prints the config parameters 
  * needed for the network configuration.
@@ -115,24 +573,145 @@ public class NLayer
       }
 
       setConfigParams();
+      startLogging();
+      buildDatasetFileList();
       echoConfigParams();
+
+      if (benchmarkKernels)
+      {
+         benchmarkKernels();
+      }
+      if (kernelBlockSize <= 0 && useOffHeapWeights)
+      {
+         kernelBlockSize = DEFAULT_KERNEL_BLOCK_SIZE;      // keeps the heap free of any copy of a layer
+      }
+      else if (kernelBlockSize <= 0)
+      {
+         kernelBlockSize = tuneKernelBlockSize();
+      }
+
       allocateArrayMemory();
+      if (compileModel)
+      {
+         compileForwardPass();
+      }
       populateArrays();
+      if (inferenceCacheSize > 0)
+      {
+         allocateInferenceCache();
+      }
+      if (!cascadeWeightsFileName.isEmpty())
+      {
+         loadCascade();
+      }
 
-      if (willTrain)
+      if (runSweep)
       {
-         train();
-         runNetworkOutput();
+         runSweep();
       }
-      else 
+      else if (distributedRole.equals("worker"))
       {
-         runNetworkOutput();
+         runWorker();
       }
-      reportResults();
+      else
+      {
+         if (willTrain && distributedRole.equals("coordinator"))
+         {
+            runCoordinator();
+            runNetworkOutput();
+         }
+         else if (willTrain && hogwildThreads > 0)
+         {
+            if (compareHogwild)
+            {
+               compareHogwild();
+            }
+            else
+            {
+               trainHogwild();
+            }
+            runNetworkOutput();
+         }
+         else if (willTrain)
+         {
+            train();
+            runNetworkOutput();
+         }
+         else if (onlineLearning)
+         {
+            runOnlineLearning();
+            runNetworkOutput();
+         }
+         else if (!evaluationFileName.isEmpty())
+         {
+            runEvaluation();
+         }
+         else if (topK > 0)
+         {
+            runTopKOutput();
+         }
+         else if (outputNode > 0)
+         {
+            runOutputNodeOutput();
+         }
+         else 
+         {
+            runNetworkOutput();
+         }
 
-      if (willSaveWeights)
+         if (predictedClasses != null)
+         {
+            reportEvaluation();
+         }
+         else if (topClasses != null)
+         {
+            reportTopK();
+         }
+         else if (nodeOutputs != null)
+         {
+            reportOutputNode();
+         }
+         else
+         {
+            reportResults();
+         }
+
+         if (checkInferenceAllocation)
+         {
+            measureInferenceAllocation();
+         }
+
+         if (willSaveWeights && weights != null)
+         {
+            saveWeights();
+            if (!binaryWeightsFileName.isEmpty())
+            {
+               saveWeightsBinary();
+            }
+         }
+
+         if (serveModel)
+         {
+            serveFromStdin();
+         }
+         if (cacheKeys != null)
+         {
+            reportCache();
+         }
+         if (cascadeWeights != null)
+         {
+            reportCascade();
+         }
+         if (checkInferenceCache)
+         {
+            checkInferenceCache();
+         }
+      } // if (runSweep)...else
+
+      stopLogging();
+      if (reportStartupTime)
       {
-         saveWeights();
+         reportStartup();
       }
 
 /*
@@ -143,623 +722,5052 @@ public class NLayer
       System.out.println("Total elapsed time: " + ANSI_BOLD + elapsedTimeMilli + "ms." + ANSI_RESET);
       System.out.println();
 
+      if (!failedChecks.isEmpty())
+      {
+         System.err.println(failedChecks.size() + " check(s) failed:");
+         for (String check : failedChecks)
+         {
+            System.err.println("   " + check);
+         }
+         System.exit(1);
+      }
    } // main(String[] args)
 
 /*
  * This method sets basic parameters for this network using a config file, including but not limited to
  * the number of inputs, number of input activations, thresholds for the random weight generation,
  * the max number of iterations, the learning factor, and whether the network is training or not.
+ * The file is read once and every key is checked up front; if any are missing or malformed, all of the 
+ * problems are printed and the program exits before anything is allocated.
  */
    public static void setConfigParams()
    {
-      try 
+      configErrors = new ArrayList<>();
+      failedChecks = new ArrayList<>();
+      properties = new Properties();
+      try (FileInputStream configStream = new FileInputStream(configFileName))
       {
-         properties = new Properties();
-         properties.load(new FileInputStream(configFileName));
-
-         numTestCases = Integer.parseInt(properties.getProperty("numTestCases"));
-         runningNum = Integer.parseInt(properties.getProperty("runningNum"));
-         defaultWeightVal = Double.parseDouble(properties.getProperty("defaultWeightVal"));
-         netConfigStr = (properties.getProperty("netConfig")).split("-");
-         numLayers = netConfigStr.length;
-         nLayers = new int[numLayers];
-         for (alpha = inLayer; alpha < numLayers; alpha++) 
-         {
-            nLayers[alpha] = Integer.parseInt(netConfigStr[alpha]);
-         }         
-
-         errorThreshold = Double.parseDouble(properties.getProperty("errorThreshold"));
-         averageError = Double.parseDouble(properties.getProperty("averageError"));
-         maxIters = Integer.parseInt(properties.getProperty("maxIters"));
-         lambda = Double.parseDouble(properties.getProperty("lambda"));
-         keepAlive = Integer.parseInt(properties.getProperty("keepAlive"));
-
-         randomMinThreshold = Double.parseDouble(properties.getProperty("randomMinThreshold"));
-         randomMaxThreshold = Double.parseDouble(properties.getProperty("randomMaxThreshold"));
-
-         willTrain = Boolean.parseBoolean(properties.getProperty("willTrain"));
-         useRandomWeights = Boolean.parseBoolean(properties.getProperty("useRandomWeights"));
-         willSaveWeights = Boolean.parseBoolean(properties.getProperty("willSaveWeights"));
-         useLoadedWeights = Boolean.parseBoolean(properties.getProperty("useLoadedWeights"));
-         weightsFileName = properties.getProperty("weightsFileName");
-         tCaseActivationFileName = properties.getProperty("tCaseActivationFileName");
-      } // try
+         properties.load(configStream);
+      }
       catch (IOException e) 
       {
-         e.printStackTrace();
+         configErrors.add("Could not read " + configFileName + ": " + e.getMessage());
       }
-      inLayer = 0;
-      outLayer = numLayers - 1;
-      reasonToStopTraining = "";
-   } // setConfigParams()
 
-/**
- * Gives the largest dimension needed for necessary arrays, such as theta or weight arrays.
- * @return int max array dimension 
+/*
+ * Network layout and data set.
  */
-   public static int maxArrayDim()
-   {
-      int retVal = nLayers[inLayer];
-      for (alpha = inLayer + 1; alpha < numLayers; alpha++)
+      netConfigStr = readString("netConfig", null).split("-");
+      numLayers = netConfigStr.length;
+      nLayers = new int[numLayers];
+      for (alpha = inLayer; alpha < numLayers; alpha++) 
       {
-         if (nLayers[alpha] > retVal)
+         if (netConfigStr[alpha].trim().matches("[cma].*"))
          {
-            retVal = nLayers[alpha];
+            continue;         // convolution and pooling layers are sized by parseLayerTypes()
+         }
+         try
+         {
+            nLayers[alpha] = Integer.parseInt(netConfigStr[alpha].trim());
+         }
+         catch (NumberFormatException e)
+         {
+            configErrors.add("netConfig has a layer size that is not a number: " + netConfigStr[alpha]);
+         }
+         if (nLayers[alpha] <= 0 && !netConfigStr[alpha].isEmpty())
+         {
+            configErrors.add("netConfig layer " + alpha + " must have at least one node.");
          }
       }
-      return retVal;
-   } // maxArrayDim()
-
-
-
-/**
- * Gives the largest dimension needed for necessary arrays, such as theta or weight arrays.
- * @return int max array dimension 
- */
-public static int secondMaxArrayDim()
-{
-   int retVal = nLayers[inLayer+1];
-   for (alpha = inLayer + 1; alpha < numLayers; alpha++)
-   {
-      if (nLayers[alpha] > retVal)
+      if (numLayers < 2)
       {
-         retVal = nLayers[alpha];
+         configErrors.add("netConfig needs at least an input and an output layer.");
       }
-   }
-   return retVal;
-} // maxArrayDim()
+      numTestCases = readInt("numTestCases", null);
+      runningNum = readInt("runningNum", null);
+      labelsFromFileNames = readBoolean("labelsFromFileNames", "false");
+      datasetManifest = readString("datasetManifest", "");
+
 /*
- * The sigmoid function is an activation function. It is bounded between 0 and 1.
- * 
- * @param x the value to plug into the function
- * @return double the calculated value for sigmoid(x)
+ * Online learning.
  */
-   public static double sigmoid(double x)
-   {
-      return (1.0 / (1.0 + Math.exp(-x)));
-   }
+      onlineLearning = readBoolean("onlineLearning", "false");
+      onlineLambda = readDouble("onlineLambda", "0.05");
+      onlineQueueSize = readInt("onlineQueueSize", "1000");
+      onlinePublishInterval = readInt("onlinePublishInterval", "25");
+      onlineRounds = readInt("onlineRounds", "1");
 
 /*
- * Derivative of the sigmoid function. Useful for intermediate calculations and weight optimizations.
- * The first derivative of sigmoid has a shape that is bell shaped.
- * 
- * @param x the value to plug into the function
- * @return double the calculated value for sigmoid'(x)
+ * Serving and hot reload.
  */
-   public static double derivativeSigmoid(double x)
-   {
-      double val = sigmoid(x);
-      return val * (1.0 - val);
-   }
+      serveModel = readBoolean("serveModel", "false");
+      reloadPollMillis = readInt("reloadPollMillis", "1000");
+      reloadWarmupPasses = readInt("reloadWarmupPasses", "200");
+      inferenceCacheSize = readInt("inferenceCacheSize", "0");
+      checkInferenceCache = readBoolean("checkInferenceCache", "false");
+      topK = readInt("topK", "0");
+      outputNode = readInt("outputNode", "0");
 
 /*
- * Activation function used throughout this neural network.
- * 
- * @param num value to plug into the activation function
- * @return double the calculated value of f(x), where f is the activation function
- * 
+ * Evaluation.
  */
-   public static double activationFunction(double num)
-   {
-      return sigmoid(num);
-   }
+      evaluationFileName = readString("evaluationFileName", "");
+      evaluationBatchSize = readInt("evaluationBatchSize", "64");
+      minAccuracy = readDouble("minAccuracy", "0");
 
 /*
- * Derivative of the activation function for this neural network.
- * 
- * @param num value to plug into the function
- * @return double the calculated value of f'(x), where f' is the derivative of the activation function
- * 
+ * Logging.
  */
-   public static double derivativeActivationFunction(double num)
-   {
-      return derivativeSigmoid(num);
-   }
+      logFormat = readString("logFormat", "text");
+      quietLogging = readBoolean("quietLogging", "false");
+      logBufferSize = readInt("logBufferSize", "1024");
 
 /*
- * Prints out the parameters set in the config. 
+ * Input downsampling and the model cascade.
  */
-   public static void echoConfigParams()
-   {
-      System.out.println("----------------------------------------------");      
-      System.out.print("N-Layer Network Configuration= ");
+      inputDownsample = readInt("inputDownsample", "1");
+      cascadeWeightsFileName = readString("cascadeWeightsFileName", "");
+      cascadeNetConfig = readString("cascadeNetConfig", "");
+      cascadeDownsample = readInt("cascadeDownsample", "5");
+      cascadeThreshold = readDouble("cascadeThreshold", "0.9");
+      cascadeMargin = readDouble("cascadeMargin", "0.0");
 
-      for (alpha = inLayer; alpha < numLayers - 1; alpha++)
+/*
+ * Data augmentation.
+ */
+      augmentImages = readBoolean("augmentImages", "false");
+      augmentThreads = readInt("augmentThreads", "2");
+      imageRows = readInt("imageRows", "100");
+      imageCols = readInt("imageCols", "120");
+      augmentMaxShift = readInt("augmentMaxShift", "3");
+      augmentFlip = readBoolean("augmentFlip", "true");
+      augmentNoise = readDouble("augmentNoise", "0.02");
+      augmentBrightness = readDouble("augmentBrightness", "0.1");
+      tCaseActivationFileName = readString("tCaseActivationFileName", "");
+
+/*
+ * Weights and optimizer.
+ */
+      defaultWeightVal = readDouble("defaultWeightVal", null);
+      errorThreshold = readDouble("errorThreshold", null);
+      averageError = readDouble("averageError", "0.0");
+      maxIters = readInt("maxIters", null);
+      lambda = readDouble("lambda", null);
+      dropoutRate = readDouble("dropoutRate", "0.0");
+      weightDecay = readDouble("weightDecay", "0.0");
+      outputHead = readString("outputHead", "sigmoid");
+      softmaxHead = outputHead.equals("softmax");
+      keepAlive = readInt("keepAlive", null);
+      randomMinThreshold = readDouble("randomMinThreshold", null);
+      randomMaxThreshold = readDouble("randomMaxThreshold", null);
+      randomSeed = readLong("randomSeed", String.valueOf(System.nanoTime()));
+      random = new SplittableRandom(randomSeed);
+      willTrain = readBoolean("willTrain", null);
+      if (!labelsFromFileNames && datasetManifest.isEmpty() && numTestCases > 0 && nLayers[numLayers - 1] > 0)
       {
-         System.out.print(nLayers[alpha] + "-");
+         readConfigTargets();
       }
+      useRandomWeights = readBoolean("useRandomWeights", null);
+      useLoadedWeights = readBoolean("useLoadedWeights", null);
+      reuseForwardError = readBoolean("reuseForwardError", "false");
+      hogwildThreads = readInt("hogwildThreads", "0");
+      compareHogwild = readBoolean("compareHogwild", "false");
+      hogwildTolerance = readDouble("hogwildTolerance", "0.1");
 
-      System.out.println(nLayers[outLayer]);
-      System.out.println("Config File: " + configFileName);
-      
-      if (useRandomWeights)
+/*
+ * Weight files and storage.
+ */
+      willSaveWeights = readBoolean("willSaveWeights", null);
+      weightsFileName = readString("weightsFileName", null);
+      binaryWeightsFileName = readString("binaryWeightsFileName", "");
+      useOffHeapWeights = readBoolean("useOffHeapWeights", "false");
+      mapWeights = readBoolean("mapWeights", "false");
+
+/*
+ * Kernels and diagnostics.
+ */
+      kernelBlockSize = readInt("kernelBlockSize", "0");
+      benchmarkKernels = readBoolean("benchmarkKernels", "false");
+      checkInferenceAllocation = readBoolean("checkInferenceAllocation", "false");
+      reportStartupTime = readBoolean("reportStartupTime", "false");
+      compileModel = readBoolean("compileModel", "false");
+
+/*
+ * Hyperparameter sweeps and distributed training.
+ */
+      runSweep = readBoolean("runSweep", "false");
+      sweepThreads = readInt("sweepThreads", "0");
+      sweepRungIters = readInt("sweepRungIters", "50");
+      sweepEta = readInt("sweepEta", "2");
+      sweepRandomTrials = readInt("sweepRandomTrials", "0");
+      sweepResultsFileName = readString("sweepResultsFileName", "sweepResults.txt");
+      if (runSweep)
       {
-         System.out.println("Weights will be randomly generated. Bounds for Minimum and Maximum Weight Generation = ("
-               + randomMinThreshold + " , " + randomMaxThreshold + ")");
+         sweepNetConfigs = parseSweepNetConfigs("sweepNetConfigs", properties.getProperty("netConfig", ""));
+         sweepLambdas = parseSweepList("sweepLambdas", String.valueOf(lambda));
+         sweepRandomRanges = parseSweepList("sweepRandomRanges", String.valueOf(randomMaxThreshold));
+         sweepErrorThresholds = parseSweepList("sweepErrorThresholds", String.valueOf(errorThreshold));
       }
-      else if (useLoadedWeights)
+      distributedRole = readString("distributedRole", "none");
+      coordinatorHost = readString("coordinatorHost", "localhost");
+      coordinatorPort = readInt("coordinatorPort", "5123");
+      numWorkers = readInt("numWorkers", "1");
+      workerId = readInt("workerId", "0");
+      averagingInterval = readInt("averagingInterval", "1");
+      parallelConvolution = readBoolean("parallelConvolution", "true");
+      parseLayerTypes();
+
+      if (augmentImages && (imageRows <= 0 || imageCols <= 0 || (long) imageRows * imageCols > nLayers[inLayer]))
       {
-         System.out.println("Weights will be loaded from " + weightsFileName + ".");
+         configErrors.add("imageRows * imageCols must fit in the " + nLayers[inLayer] + " inputs to augment images.");
       }
-      else
+      if (inputDownsample < 1 || cascadeDownsample < 1)
       {
-         System.out.println("Manual weights will be used.");
+         configErrors.add("inputDownsample and cascadeDownsample must be at least 1.");
       }
-
-      if (willSaveWeights)
+      else if (inputDownsample > 1 && (imageRows / inputDownsample) * (imageCols / inputDownsample) != nLayers[inLayer])
       {
-         System.out.println("Array data will be written to " + weightsFileName);
+         configErrors.add("netConfig must start with " + (imageRows / inputDownsample) * (imageCols / inputDownsample) 
+               + " inputs to downsample images by " + inputDownsample + ".");
       }
-
-      if (willTrain)
+      if (inputDownsample > 1 && augmentImages)
       {
-         System.out.println("Maximum Number of Iterations = " + maxIters);
-         System.out.println("Error Threshold to Stop Training = " + errorThreshold);
-         System.out.println("Learning Factor = " + lambda);
-         System.out.println("Training will now begin.");
+         configErrors.add("augmentImages works on full-size images, so it needs inputDownsample = 1.");
       }
-      else
+      if (!cascadeWeightsFileName.isEmpty())
       {
-         System.out.println("Model is only using set #" + runningNum + " of images while running.");
-         System.out.println("Model is now Running without training.");
-      }
-      System.out.println("----------------------------------------------");      
-   } // echoConfigParams()
-
+         String[] sizes = cascadeNetConfig.split("-");
+         cascadeLayers = new int[sizes.length];
+         for (int layer = 0; layer < sizes.length; layer++)
+         {
+            try
+            {
+               cascadeLayers[layer] = Integer.parseInt(sizes[layer].trim());
+            }
+            catch (NumberFormatException e)
+            {
+               configErrors.add("cascadeNetConfig has a layer size that is not a number: " + sizes[layer]);
+            }
+         }
+         if (cascadeLayers.length < 2 || cascadeLayers[0] != (imageRows / cascadeDownsample) * (imageCols / cascadeDownsample)
+               || cascadeLayers[cascadeLayers.length - 1] != nLayers[numLayers - 1])
+         {
+            configErrors.add("cascadeNetConfig must start with " + (imageRows / cascadeDownsample) 
+                  * (imageCols / cascadeDownsample) + " inputs and end with the " + nLayers[numLayers - 1] + " outputs.");
+         }
+         if (inputDownsample != 1 || (long) imageRows * imageCols > nLayers[inLayer])
+         {
+            configErrors.add("A cascade gates a model that reads full-size images, so it needs inputDownsample = 1.");
+         }
+      } // if (!cascadeWeightsFileName.isEmpty())
+      if (onlineLearning && (onlineQueueSize <= 0 || onlinePublishInterval <= 0))
+      {
+         configErrors.add("onlineQueueSize and onlinePublishInterval must be positive.");
+      }
+      if (reloadPollMillis < 0 || reloadWarmupPasses < 0 || inferenceCacheSize < 0)
+      {
+         configErrors.add("reloadPollMillis, reloadWarmupPasses and inferenceCacheSize cannot be negative.");
+      }
+      if (topK < 0 || topK > nLayers[numLayers - 1])
+      {
+         configErrors.add("topK must be between 0 and the " + nLayers[numLayers - 1] + " outputs.");
+      }
+      if (outputNode < 0 || outputNode > nLayers[numLayers - 1])
+      {
+         configErrors.add("outputNode must be between 0 and the " + nLayers[numLayers - 1] + " outputs.");
+      }
+      if (topK > 0 && outputNode > 0)
+      {
+         configErrors.add("topK and outputNode cannot both be set.");
+      }
+      if (evaluationBatchSize <= 0)
+      {
+         configErrors.add("evaluationBatchSize must be positive.");
+      }
+      if (minAccuracy < 0.0 || minAccuracy > 1.0)
+      {
+         configErrors.add("minAccuracy must be between 0 and 1.");
+      }
+      if (!logFormat.equals("text") && !logFormat.equals("json"))
+      {
+         configErrors.add("logFormat must be text or json.");
+      }
+      if (logBufferSize <= 0)
+      {
+         configErrors.add("logBufferSize must be positive.");
+      }
+      if (!outputHead.equals("sigmoid") && !softmaxHead)
+      {
+         configErrors.add("outputHead must be sigmoid or softmax.");
+      }
+      if (dropoutRate < 0.0 || dropoutRate >= 1.0 || weightDecay < 0.0)
+      {
+         configErrors.add("dropoutRate must be at least 0 and below 1, and weightDecay cannot be negative.");
+      }
+      if (numTestCases <= 0)
+      {
+         configErrors.add("numTestCases must be positive.");
+      }
+      if (maxIters < 0 || keepAlive < 0)
+      {
+         configErrors.add("maxIters and keepAlive cannot be negative.");
+      }
+      if (randomMinThreshold > randomMaxThreshold)
+      {
+         configErrors.add("randomMinThreshold is larger than randomMaxThreshold.");
+      }
+      if (!distributedRole.equals("none") && !distributedRole.equals("coordinator") && !distributedRole.equals("worker"))
+      {
+         configErrors.add("distributedRole must be none, coordinator or worker.");
+      }
+      if (numWorkers <= 0 || workerId < 0 || workerId >= numWorkers || averagingInterval <= 0)
+      {
+         configErrors.add("numWorkers and averagingInterval must be positive, and workerId must be below numWorkers.");
+      }
+
+      if (!configErrors.isEmpty())
+      {
+         System.err.println("The config file " + configFileName + " has errors:");
+         for (String error : configErrors)
+         {
+            System.err.println("   " + error);
+         }
+         System.exit(1);
+      }
+
+      inLayer = 0;
+      outLayer = numLayers - 1;
+      reasonToStopTraining = "";
+      useOffHeapWeights = useOffHeapWeights || mapWeights;
+
+      if (hasConvLayers && (runSweep || !distributedRole.equals("none") || hogwildThreads > 0 || useOffHeapWeights 
+            || onlineLearning))
+      {
+         System.err.println("Convolution and pooling layers only work with train() and on-heap inference, so sweeps, "
+               + "distributed and asynchronous training, off-heap weights and online learning will not be used.");
+         runSweep = false;
+         distributedRole = "none";
+         hogwildThreads = 0;
+         useOffHeapWeights = false;
+         mapWeights = false;
+         onlineLearning = false;
+      }
+
+      if (compileModel && (hasConvLayers || useOffHeapWeights))
+      {
+         System.err.println("The compiled forward pass only covers fully connected layers with on-heap weights. "
+               + "The generic forward pass will be used.");
+         compileModel = false;
+      }
+
+      if (runSweep && !willTrain)
+      {
+         System.err.println("A sweep trains on the training cases, so willTrain must be true. The sweep will not be run.");
+         runSweep = false;
+      }
+
+      if (!distributedRole.equals("none") && (!willTrain || runSweep))
+      {
+         System.err.println("Distributed training needs willTrain = true and no sweep. The network will train on its own.");
+         distributedRole = "none";
+      }
+
+      if (onlineLearning && (willTrain || useOffHeapWeights))
+      {
+         System.err.println("Online learning runs on a deployed model, so it needs willTrain = false and on-heap weights. "
+               + "It will not be used.");
+         onlineLearning = false;
+      }
+
+      if (!evaluationFileName.isEmpty() && (willTrain || onlineLearning))
+      {
+         System.err.println("Evaluation measures a trained model on a held-out set, so it needs willTrain = false and no "
+               + "online learning. The truth table will be printed instead.");
+         evaluationFileName = "";
+      }
+
+      if (!cascadeWeightsFileName.isEmpty() && willTrain)
+      {
+         System.err.println("The cascade is only used for inference, so it will not be used while training.");
+         cascadeWeightsFileName = "";
+      }
+
+      if (checkInferenceCache && inferenceCacheSize == 0)
+      {
+         System.err.println("checkInferenceCache needs an inference cache, so inferenceCacheSize must be set. The cache will "
+               + "not be checked.");
+         checkInferenceCache = false;
+      }
+
+      if (serveModel && (runSweep || distributedRole.equals("worker") || onlineLearning))
+      {
+         System.err.println("Serving needs a single network without online learning. The model will not be served.");
+         serveModel = false;
+      }
+
+      if (useOffHeapWeights && (willTrain || !useLoadedWeights || binaryWeightsFileName.isEmpty()))
+      {
+         System.err.println("Off-heap weights need willTrain = false, useLoadedWeights = true and a binaryWeightsFileName. "
+               + "Weights will be kept on the heap.");
+         useOffHeapWeights = false;
+         mapWeights = false;
+      }
+
+      if (serveModel && useOffHeapWeights)
+      {
+         System.err.println("Served models are reloaded into heap arrays, so weights will be kept on the heap.");
+         useOffHeapWeights = false;
+         mapWeights = false;
+      }
+   } // setConfigParams()
+
+/*
+ * Works out the type and shape of every layer in netConfig, along with the shape of its weights. Fully connected
+ * layers are flat, with one channel of one pixel per node. If the first hidden layer is a convolution or pooling layer,
+ * the input layer is read as one channel holding the imageRows by imageCols image, downsampled by inputDownsample.
+ * Convolution layers have no padding and a stride of 1, and their weights hold one row of filters per output channel,
+ * indexed [channel][(inChannel * kernel + row) * kernel + col]. Pooling windows do not overlap and have no weights.
+ * Problems are recorded in configErrors.
+ */
+   public static void parseLayerTypes()
+   {
+      String token;
+      int layer, channels, kernel;
+      layerTypes = new int[numLayers];
+      layerChannels = new int[numLayers];
+      layerRows = new int[numLayers];
+      layerCols = new int[numLayers];
+      layerKernel = new int[numLayers];
+      weightRows = new int[numLayers];
+      weightCols = new int[numLayers];
+      hasConvLayers = false;
+
+      layerChannels[0] = 1;
+      layerRows[0] = imageRows / Math.max(inputDownsample, 1);
+      layerCols[0] = imageCols / Math.max(inputDownsample, 1);
+      for (layer = 1; layer < numLayers; layer++)
+      {
+         token = netConfigStr[layer].trim();
+         if (!token.matches("c\\d{1,6}x\\d{1,6}|[ma]\\d{1,6}"))
+         {
+            if (token.matches("[cma].*"))
+            {
+               configErrors.add("netConfig layer " + layer + " must look like c8x5, m2 or a2: " + token);
+            }
+            layerChannels[layer] = nLayers[layer];
+            layerRows[layer] = 1;
+            layerCols[layer] = 1;
+            weightRows[layer] = nLayers[layer - 1];
+            weightCols[layer] = nLayers[layer];
+            continue;
+         }
+
+         hasConvLayers = true;
+         if (layer == numLayers - 1 || (layer > 1 && layerTypes[layer - 1] == LAYER_DENSE))
+         {
+            configErrors.add("Convolution and pooling layers must come before every fully connected layer: " + token);
+         }
+         if (token.charAt(0) == 'c')
+         {
+            channels = Integer.parseInt(token.substring(1, token.indexOf('x')));
+            kernel = Integer.parseInt(token.substring(token.indexOf('x') + 1));
+            layerTypes[layer] = LAYER_CONV;
+            layerChannels[layer] = channels;
+            layerRows[layer] = layerRows[layer - 1] - kernel + 1;
+            layerCols[layer] = layerCols[layer - 1] - kernel + 1;
+            weightRows[layer] = channels;
+            weightCols[layer] = layerChannels[layer - 1] * kernel * kernel;
+         }
+         else
+         {
+            kernel = Integer.parseInt(token.substring(1));
+            layerTypes[layer] = token.charAt(0) == 'm' ? LAYER_MAX_POOL : LAYER_AVG_POOL;
+            layerChannels[layer] = layerChannels[layer - 1];
+            layerRows[layer] = kernel > 0 ? layerRows[layer - 1] / kernel : 0;
+            layerCols[layer] = kernel > 0 ? layerCols[layer - 1] / kernel : 0;
+         }
+         layerKernel[layer] = kernel;
+         nLayers[layer] = layerChannels[layer] * layerRows[layer] * layerCols[layer];
+         if (kernel <= 0 || nLayers[layer] <= 0)
+         {
+            configErrors.add("netConfig layer " + token + " leaves no pixels of the " + layerRows[layer - 1] + " by " 
+                  + layerCols[layer - 1] + " image before it.");
+         }
+      } // for (layer = 1; layer < numLayers; layer++)
+
+      if (hasConvLayers && (long) layerRows[0] * layerCols[0] > nLayers[inLayer])
+      {
+         configErrors.add("The " + layerRows[0] + " by " + layerCols[0] + " image does not fit in the " + nLayers[inLayer]
+               + " inputs.");
+      }
+   } // parseLayerTypes()
+
+/*
+ * Reads one value from the config file. A missing key without a default is recorded in configErrors so that every
+ * problem with the config can be reported at once.
+ * 
+ * @param key        the config key
+ * @param defaultVal value to use if the key is missing, or null if the key is required
+ * @return String the trimmed value, or an empty string if a required key is missing
+ */
+   public static String readString(String key, String defaultVal)
+   {
+      String value = properties.getProperty(key, defaultVal);
+      if (value == null || (defaultVal == null && value.trim().isEmpty()))
+      {
+         configErrors.add("Missing required key " + key + ".");
+         value = "";
+      }
+      return value.trim();
+   } // readString(String key, String defaultVal)
+
+/*
+ * Reads an integer from the config file, recording an error if it is missing or not a number.
+ * 
+ * @param key        the config key
+ * @param defaultVal value to use if the key is missing, or null if the key is required
+ * @return int the value, or 0 if it could not be read
+ */
+   public static int readInt(String key, String defaultVal)
+   {
+      return (int) readLong(key, defaultVal);
+   } // readInt(String key, String defaultVal)
+
+/*
+ * Reads a long from the config file, recording an error if it is missing or not a whole number.
+ * 
+ * @param key        the config key
+ * @param defaultVal value to use if the key is missing, or null if the key is required
+ * @return long the value, or 0 if it could not be read
+ */
+   public static long readLong(String key, String defaultVal)
+   {
+      String value = readString(key, defaultVal);
+      try
+      {
+         return value.isEmpty() ? 0 : Long.parseLong(value);
+      }
+      catch (NumberFormatException e)
+      {
+         configErrors.add(key + " must be a whole number, not " + value + ".");
+         return 0;
+      }
+   } // readLong(String key, String defaultVal)
+
+/*
+ * Reads a decimal number from the config file, recording an error if it is missing or not a number.
+ * 
+ * @param key        the config key
+ * @param defaultVal value to use if the key is missing, or null if the key is required
+ * @return double the value, or 0.0 if it could not be read
+ */
+   public static double readDouble(String key, String defaultVal)
+   {
+      String value = readString(key, defaultVal);
+      try
+      {
+         return value.isEmpty() ? 0.0 : Double.parseDouble(value);
+      }
+      catch (NumberFormatException e)
+      {
+         configErrors.add(key + " must be a number, not " + value + ".");
+         return 0.0;
+      }
+   } // readDouble(String key, String defaultVal)
+
+/*
+ * Reads true or false from the config file, recording an error for anything else.
+ * 
+ * @param key        the config key
+ * @param defaultVal value to use if the key is missing, or null if the key is required
+ * @return boolean the value, or false if it could not be read
+ */
+   public static boolean readBoolean(String key, String defaultVal)
+   {
+      String value = readString(key, defaultVal);
+      if (!value.isEmpty() && !value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false"))
+      {
+         configErrors.add(key + " must be true or false, not " + value + ".");
+      }
+      return Boolean.parseBoolean(value);
+   } // readBoolean(String key, String defaultVal)
+
+/*
+ * Reads the targetOutput_<case>_<output> keys of every case the run will use, numbered as for training: every case
+ * when training, and the first case of each class otherwise. Each one is required, so a missing or malformed target is
+ * recorded in configErrors instead of training against a target of 0.
+ */
+   public static void readConfigTargets()
+   {
+      int outputs = nLayers[numLayers - 1];
+      int setsPerClass = Math.max(numTestCases / outputs, 1);
+      int used = willTrain ? numTestCases : outputs;
+      int tCase, configCase, out;
+
+      configTargets = new double[Math.max(numTestCases, used * setsPerClass)][outputs];
+      for (tCase = 0; tCase < used; tCase++)
+      {
+         configCase = willTrain ? tCase : tCase * setsPerClass;
+         for (out = 0; out < outputs; out++)
+         {
+            configTargets[configCase][out] = readDouble("targetOutput_" + configCase + "_" + out, null);
+         }
+      }
+   } // readConfigTargets()
+
+/**
+ * Gives the largest dimension needed for necessary arrays, such as theta or weight arrays.
+ * @return int max array dimension 
+ */
+   public static int maxArrayDim()
+   {
+      int retVal = nLayers[inLayer];
+      for (alpha = inLayer + 1; alpha < numLayers; alpha++)
+      {
+         if (nLayers[alpha] > retVal)
+         {
+            retVal = nLayers[alpha];
+         }
+      }
+      return retVal;
+   } // maxArrayDim()
+
+/*
+ * The sigmoid function is an activation function. It is bounded between 0 and 1.
+ * 
+ * @param x the value to plug into the function
+ * @return double the calculated value for sigmoid(x)
+ */
+   public static double sigmoid(double x)
+   {
+      return (1.0 / (1.0 + Math.exp(-x)));
+   }
+
+/*
+ * Derivative of the sigmoid function. Useful for intermediate calculations and weight optimizations.
+ * The first derivative of sigmoid has a shape that is bell shaped.
+ * 
+ * @param x the value to plug into the function
+ * @return double the calculated value for sigmoid'(x)
+ */
+   public static double derivativeSigmoid(double x)
+   {
+      double val = sigmoid(x);
+      return val * (1.0 - val);
+   }
+
+/*
+ * Activation function used throughout this neural network.
+ * 
+ * @param num value to plug into the activation function
+ * @return double the calculated value of f(x), where f is the activation function
+ * 
+ */
+   public static double activationFunction(double num)
+   {
+      return sigmoid(num);
+   }
+
+/*
+ * Derivative of the activation function for this neural network.
+ * 
+ * @param num value to plug into the function
+ * @return double the calculated value of f'(x), where f' is the derivative of the activation function
+ * 
+ */
+   public static double derivativeActivationFunction(double num)
+   {
+      return derivativeSigmoid(num);
+   }
+
+/*
+ * Turns the weighted sums of the output layer into outputs, either with the activation function or with a softmax.
+ * The buffers may be the same array.
+ * 
+ * @param sums weighted sums of the output layer
+ * @param out  buffer for the outputs
+ * @param size number of output nodes
+ */
+   public static void applyOutputHead(double[] sums, double[] out, int size)
+   {
+      if (softmaxHead)
+      {
+         softmax(sums, out, size);
+      }
+      else
+      {
+         for (int node = 0; node < size; node++)
+         {
+            out[node] = activationFunction(sums[node]);
+         }
+      }
+   } // applyOutputHead(double[] sums, double[] out, int size)
+
+/*
+ * Finds the softmax of a set of weighted sums. The largest sum is subtracted before exponentiating, so no exp can
+ * overflow, and each output is scaled by the reciprocal of their total. The buffers may be the same array.
+ * 
+ * @param sums weighted sums of the output layer
+ * @param out  buffer for the probabilities
+ * @param size number of output nodes
+ */
+   public static void softmax(double[] sums, double[] out, int size)
+   {
+      int node;
+      double max = Double.NEGATIVE_INFINITY, total = 0.0;
+      for (node = 0; node < size; node++)
+      {
+         max = Math.max(max, sums[node]);
+      }
+      for (node = 0; node < size; node++)
+      {
+         out[node] = Math.exp(sums[node] - max);
+         total += out[node];
+      }
+      total = 1.0 / total;
+      for (node = 0; node < size; node++)
+      {
+         out[node] *= total;
+      }
+   } // softmax(double[] sums, double[] out, int size)
+
+/*
+ * Finds log(sum(exp(sums))) without overflowing, by factoring out the largest sum.
+ * 
+ * @param sums weighted sums of the output layer
+ * @param size number of output nodes
+ * @return double the log of the softmax denominator
+ */
+   public static double logSumExp(double[] sums, int size)
+   {
+      int node;
+      double max = Double.NEGATIVE_INFINITY, total = 0.0;
+      for (node = 0; node < size; node++)
+      {
+         max = Math.max(max, sums[node]);
+      }
+      for (node = 0; node < size; node++)
+      {
+         total += Math.exp(sums[node] - max);
+      }
+      return max + Math.log(total);
+   } // logSumExp(double[] sums, int size)
+
+/*
+ * Finds the cross-entropy of a softmax output against its target. Probabilities that underflowed to 0 are counted as
+ * the smallest double, so the error stays finite.
+ * 
+ * @param target target outputs
+ * @param output softmax outputs
+ * @param size   number of output nodes
+ * @return double the cross-entropy
+ */
+   public static double crossEntropy(double[] target, double[] output, int size)
+   {
+      double error = 0.0;
+      for (int node = 0; node < size; node++)
+      {
+         if (target[node] != 0.0)
+         {
+            error -= target[node] * Math.log(Math.max(output[node], Double.MIN_VALUE));
+         }
+      }
+      return error;
+   } // crossEntropy(double[] target, double[] output, int size)
+
+/*
+ * Prints out the parameters set in the config. 
+ */
+   public static void echoConfigParams()
+   {
+      System.out.println("----------------------------------------------");      
+      System.out.print("N-Layer Network Configuration= ");
+
+      for (alpha = inLayer; alpha < numLayers - 1; alpha++)
+      {
+         if (layerTypes[alpha] != LAYER_DENSE)
+         {
+            System.out.print(netConfigStr[alpha].trim() + "[" + layerChannels[alpha] + "x" + layerRows[alpha] + "x" 
+                  + layerCols[alpha] + "]-");
+         }
+         else
+         {
+            System.out.print(nLayers[alpha] + "-");
+         }
+      }
+
+      System.out.println(nLayers[outLayer]);
+      System.out.println("Config File: " + configFileName);
+      System.out.println("Random Seed = " + randomSeed);
+      if (!datasetManifest.isEmpty())
+      {
+         System.out.println("Test cases are listed in " + datasetManifest + ".");
+      }
+      if (inputDownsample > 1)
+      {
+         System.out.println("Images are downsampled to " + imageRows / inputDownsample + " by " 
+               + imageCols / inputDownsample + " pixels.");
+      }
+      
+      if (useRandomWeights)
+      {
+         System.out.println("Weights will be randomly generated. Bounds for Minimum and Maximum Weight Generation = ("
+               + randomMinThreshold + " , " + randomMaxThreshold + ")");
+      }
+      else if (mapWeights)
+      {
+         System.out.println("Weights will be memory-mapped read-only from " + binaryWeightsFileName + ".");
+      }
+      else if (useOffHeapWeights)
+      {
+         System.out.println("Weights will be loaded off-heap from " + binaryWeightsFileName + ".");
+      }
+      else if (useLoadedWeights)
+      {
+         System.out.println("Weights will be loaded from " 
+               + (binaryWeightsFileName.isEmpty() ? weightsFileName : binaryWeightsFileName) + ".");
+      }
+      else
+      {
+         System.out.println("Manual weights will be used.");
+      }
+
+      if (willSaveWeights)
+      {
+         System.out.println("Array data will be written to " + weightsFileName);
+         if (!binaryWeightsFileName.isEmpty())
+         {
+            System.out.println("Binary weights will be written to " + binaryWeightsFileName);
+         }
+      }
+
+      if (runSweep)
+      {
+         System.out.println("A hyperparameter sweep will be run with up to " + maxIters + " iterations per trial.");
+         System.out.println("Results will be written to " + sweepResultsFileName);
+      }
+      else if (distributedRole.equals("worker"))
+      {
+         System.out.println("Worker " + workerId + " of " + numWorkers + " will train on its " + numTestCases + " of " 
+               + distributedCases + " cases with the coordinator at " + coordinatorHost + ":" + coordinatorPort + ".");
+      }
+      else if (willTrain)
+      {
+         if (distributedRole.equals("coordinator"))
+         {
+            System.out.println("Coordinating " + numWorkers + " workers on port " + coordinatorPort 
+                  + ", averaging weights every " + averagingInterval + " iterations.");
+         }
+         if (hogwildThreads > 0 && !distributedRole.equals("coordinator"))
+         {
+            System.out.println("Training asynchronously on " + hogwildThreads + " threads without locks.");
+         }
+         System.out.println("Maximum Number of Iterations = " + maxIters);
+         System.out.println("Error Threshold to Stop Training = " + errorThreshold);
+         System.out.println("Learning Factor = " + lambda);
+         if (softmaxHead)
+         {
+            System.out.println("The output layer is a softmax trained on cross-entropy.");
+         }
+         if (dropoutRate > 0.0 || weightDecay > 0.0)
+         {
+            System.out.println("Dropout Rate = " + dropoutRate + ", Weight Decay = " + weightDecay);
+         }
+         if (augmentImages)
+         {
+            System.out.println("Training images will be augmented on " + augmentThreads + " background threads.");
+         }
+         System.out.println("Training will now begin.");
+      }
+      else
+      {
+         if (datasetManifest.isEmpty())
+         {
+            System.out.println("Model is only using set #" + runningNum + " of images while running.");
+         }
+         else
+         {
+            System.out.println("Model is running on the test split of " + datasetManifest + ".");
+         }
+         System.out.println("Model is now Running without training.");
+         if (!evaluationFileName.isEmpty())
+         {
+            System.out.println("The labelled cases will be evaluated in batches of " + evaluationBatchSize 
+                  + " and the results written to " + evaluationFileName + ".");
+         }
+         if (topK > 0)
+         {
+            System.out.println("Only the best " + topK + " classes of each case will be found.");
+         }
+         if (outputNode > 0)
+         {
+            System.out.println("Only output " + outputNode + " of each case will be found.");
+         }
+         if (!cascadeWeightsFileName.isEmpty())
+         {
+            System.out.println("Cascade model " + cascadeNetConfig + " will answer first when its top output is at least " 
+                  + cascadeThreshold + ".");
+         }
+         if (onlineLearning)
+         {
+            System.out.println("The model will keep learning online from the labelled cases with learning factor " 
+                  + onlineLambda + ".");
+         }
+      }
+      if (serveModel)
+      {
+         System.out.println("The model will then classify the files named on standard input" + (reloadPollMillis > 0 
+               ? ", reloading " + servedWeightsFileName() + " when it changes." : "."));
+      }
+      System.out.println("----------------------------------------------");      
+   } // echoConfigParams()
+
+/*
+ * Allocates space for test case, activations, output, target output, and weight arrays.
+ * If the model is currently training, also allocates memory for the weight optimization arrays.
+ */
+   public static void allocateArrayMemory()
+   {
+      testCases = new double[numTestCases][nLayers[inLayer]];
+      targetOutput = new double[numTestCases][nLayers[outLayer]];
+      calculatedOutputs = new double[numTestCases][nLayers[outLayer]];
+      
+      maxLayerSize = maxArrayDim();
+      activations = new double[numLayers][maxLayerSize];
+
+      if (!useOffHeapWeights)          // each layer only gets the rows and columns it uses
+      {
+         weights = new double[numLayers][][];
+         weights[inLayer] = new double[0][0];
+         for (alpha = 1; alpha < numLayers; alpha++)
+         {
+            weights[alpha] = new double[weightRows[alpha]][weightCols[alpha]];
+         }
+      }
+      
+      if (willTrain)
+      {
+         theta = new double[numLayers][maxLayerSize];
+         psi = new double[numLayers][maxLayerSize]; 
+      }
+
+      if (willTrain && dropoutRate > 0.0)
+      {
+         dropoutMasks = new long[numLayers][];
+         for (alpha = 1; alpha < outLayer; alpha++)
+         {
+            dropoutMasks[alpha] = new long[(nLayers[alpha] + Long.SIZE - 1) / Long.SIZE];
+         }
+         dropoutRandom = random.split();
+      }
+
+      inferenceWorkspace = ThreadLocal.withInitial(NLayer::allocateWorkspace);
+   } // allocateArrayMemory()
+
+/*
+ * Allocates one set of activation buffers sized from maxArrayDim(). Each thread running inference gets its own
+ * workspace once, so that the inference path itself never allocates.
+ * 
+ * @return double[][] activation buffers with one row per layer
+ */
+   public static double[][] allocateWorkspace()
+   {
+      return new double[numLayers][maxLayerSize];
+   } // allocateWorkspace()
+
+/*
+ * Inserts training values into test case and target output arrays by reading in the config file. 
+ * Then, either loads, randomizes, or manually sets the weights based on the associated boolean values.
+ * Test cases and their target outputs are loaded in parallel from the files chosen by buildDatasetFileList(), with
+ * progress printed for large data sets, and generated weights are also filled in parallel.
+ */
+   public static void populateArrays()
+   {
+      AtomicInteger loadedCases = new AtomicInteger();
+      int progressStep = Math.max(numTestCases / 10, 1);
+
+      IntStream.range(0, numTestCases).parallel().forEach(tCase ->
+      {
+         loadTestCase(tCase);
+         int loaded = loadedCases.incrementAndGet();
+         if (numTestCases >= 100 && (loaded % progressStep == 0 || loaded == numTestCases))
+         {
+            System.out.println("Loaded " + loaded + " of " + numTestCases + " test cases.");
+         }
+      });
+
+      if (useRandomWeights)
+      {
+         populateWeightsRandom();
+      }
+      else if (useOffHeapWeights)
+      {
+         loadWeightsOffHeap();
+      }
+      else if (useLoadedWeights && !binaryWeightsFileName.isEmpty())
+      {
+         loadWeightsBinary();
+      }
+      else if (useLoadedWeights)
+      {
+         loadWeights();
+      }
+      else      // sets weights with default value
+      {
+         for (alpha = 1; alpha < numLayers; alpha++)
+         {
+            double[][] layerWeights = weights[alpha];
+            IntStream.range(0, weightRows[alpha]).parallel().forEach(row -> Arrays.fill(layerWeights[row], defaultWeightVal));
+         }
+      } // else if (useLoadedWeights)...else
+
+   } // populateArrays()
+
+/*
+ * Works out which file and label each test case uses, and sets numTestCases to match. With a datasetManifest, the
+ * cases are the manifest entries in the train split when training, or the test split otherwise. Without one, the
+ * files in TestCases are named {set}-{class}.txt: training uses numTestCases / outputs sets of every class, and
+ * running uses one image of every class from set runningNum.
+ */
+   public static void buildDatasetFileList()
+   {
+      int numClasses = nLayers[outLayer];
+      int setsPerClass, tCase;
+
+      if (!datasetManifest.isEmpty())
+      {
+         readDatasetManifest();
+      }
+      else
+      {
+         setsPerClass = Math.max(numTestCases / numClasses, 1);
+         if (!willTrain)
+         {
+            numTestCases = numClasses;
+         }
+
+         caseFileNames = new String[numTestCases];
+         caseLabels = new int[numTestCases];
+         for (tCase = 0; tCase < numTestCases; tCase++)
+         {
+            if (willTrain)
+            {
+               caseFileNames[tCase] = "TestCases/" + (tCase % setsPerClass + 1) + "-" + (tCase / setsPerClass + 1) + ".txt";
+            }
+            else
+            {
+               caseFileNames[tCase] = "TestCases/" + runningNum + "-" + (tCase + 1) + ".txt";
+            }
+            caseLabels[tCase] = labelsFromFileNames ? labelFromFileName(caseFileNames[tCase]) : -1;
+         }
+
+         configTargetCases = new int[numTestCases];        // cases in the config are numbered as for training
+         for (tCase = 0; tCase < numTestCases; tCase++)
+         {
+            configTargetCases[tCase] = willTrain ? tCase : tCase * setsPerClass;
+         }
+      } // if (!datasetManifest.isEmpty())...else
+
+      distributedCases = numTestCases;
+      if (distributedRole.equals("worker"))
+      {
+         keepShard(workerId, numWorkers);
+      }
+      else if (distributedRole.equals("coordinator"))
+      {
+         keepShard(0, 0);
+      }
+   } // buildDatasetFileList()
+
+/*
+ * Keeps only one shard of the test cases, every shards-th case starting from case shard, so that a distributed
+ * worker only loads and holds its own part of the data set. With 0 shards no case is kept, as for the coordinator,
+ * which only averages weights.
+ * 
+ * @param shard  index of the first case kept
+ * @param shards number of shards, 0 to keep nothing
+ */
+   public static void keepShard(int shard, int shards)
+   {
+      int kept = shards == 0 || shard >= numTestCases ? 0 : (numTestCases - shard + shards - 1) / shards;
+      String[] shardFileNames = new String[kept];
+      int[] shardLabels = new int[kept];
+      int[] shardTargetCases = new int[kept];
+
+      for (int tCase = 0; tCase < kept; tCase++)
+      {
+         shardFileNames[tCase] = caseFileNames[shard + tCase * shards];
+         shardLabels[tCase] = caseLabels[shard + tCase * shards];
+         if (configTargetCases != null)
+         {
+            shardTargetCases[tCase] = configTargetCases[shard + tCase * shards];
+         }
+      }
+
+      caseFileNames = shardFileNames;
+      caseLabels = shardLabels;
+      configTargetCases = configTargetCases == null ? null : shardTargetCases;
+      numTestCases = kept;
+   } // keepShard(int shard, int shards)
+
+/*
+ * Reads the dataset manifest. Each line holds a file path, relative to the manifest, the class counting from 1 or
+ * "-" if it is unknown, and optionally the split, "train" or "test", which defaults to "train". Blank lines and lines
+ * starting with # are skipped.
+ */
+   public static void readDatasetManifest()
+   {
+      List<String> files = new ArrayList<>();
+      List<Integer> labels = new ArrayList<>();
+      File manifestDir = new File(datasetManifest).getAbsoluteFile().getParentFile();
+      String wantedSplit = willTrain ? "train" : "test";
+      String line;
+      String[] fields;
+      int label;
+
+      try (BufferedReader reader = new BufferedReader(new FileReader(datasetManifest)))
+      {
+         while ((line = reader.readLine()) != null)
+         {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+            {
+               continue;
+            }
+
+            fields = line.split("\\s+");
+            if ((fields.length > 2 ? fields[2] : "train").equals(wantedSplit))
+            {
+               label = fields.length > 1 && !fields[1].equals("-") ? Integer.parseInt(fields[1]) - 1 : -1;
+               if (label >= nLayers[outLayer])
+               {
+                  throw new IOException(fields[0] + " has class " + (label + 1) + ", but the network only has " 
+                        + nLayers[outLayer] + " outputs.");
+               }
+               if (label < 0 && fields.length > 1 && !fields[1].equals("-"))
+               {
+                  throw new IOException(fields[0] + " has class " + (label + 1) + ", but classes count from 1; use - for "
+                        + "a case with no class.");
+               }
+               files.add(new File(fields[0]).isAbsolute() ? fields[0] : new File(manifestDir, fields[0]).getPath());
+               labels.add(label);
+            }
+         } // while ((line = reader.readLine()) != null)
+      } // try
+      catch (IOException | NumberFormatException e)
+      {
+         System.err.println("Error reading the dataset manifest: " + e.getMessage());
+         System.exit(1);
+      }
+
+      numTestCases = files.size();
+      caseFileNames = files.toArray(new String[0]);
+      caseLabels = new int[numTestCases];
+      for (int tCase = 0; tCase < numTestCases; tCase++)
+      {
+         caseLabels[tCase] = labels.get(tCase);
+      }
+      System.out.println("The manifest lists " + numTestCases + " " + wantedSplit + " cases.");
+   } // readDatasetManifest()
+
+/*
+ * Reads the activations of one test case from its file and sets its target output, one-hot for the case's label if
+ * it has one or from the targetOutput keys in the config otherwise. Only local variables are used, so cases can be
+ * loaded in parallel.
+ * 
+ * @param tCase index of the test case
+ */
+   public static void loadTestCase(int tCase)
+   {
+      int out;
+      try
+      {
+         readCaseFile(caseFileNames[tCase], testCases[tCase]);
+      }
+      catch (IOException e) 
+      {
+         e.printStackTrace();
+      }
+
+      if (caseLabels[tCase] >= 0)
+      {
+         Arrays.fill(targetOutput[tCase], 0.0);
+         targetOutput[tCase][caseLabels[tCase]] = 1.0;
+      }
+      else if (datasetManifest.isEmpty())
+      {
+         for (out = 0; out < nLayers[outLayer]; out++)
+         {
+            targetOutput[tCase][out] = configTargets[configTargetCases[tCase]][out];
+         }
+      }
+   } // loadTestCase(int tCase)
+
+/*
+ * Reads the input activations stored on the first line of a case file. If inputDownsample is above 1, the file's
+ * full-size image is read and shrunk to fit the input layer.
+ * 
+ * @param fileName name of the case file
+ * @param input    array the activations are written into
+ * @throws IOException if the file cannot be read or holds too few values
+ */
+   public static void readCaseFile(String fileName, double[] input) throws IOException
+   {
+      int count = inputDownsample > 1 ? imageRows * imageCols : nLayers[inLayer];
+      double[] raw = inputDownsample > 1 ? new double[count] : input;
+      try (BufferedReader reader = new BufferedReader(new FileReader(fileName)))
+      {
+         String line = reader.readLine();
+         String[] values = line == null ? new String[0] : line.trim().split("\\s+");
+         if (values.length < count)
+         {
+            throw new IOException(fileName + " holds " + values.length + " values, but the network reads " 
+                  + count + ".");
+         }
+         for (int in = 0; in < count; in++) 
+         {
+            raw[in] = Double.parseDouble(values[in]);
+         }
+      }
+      catch (NumberFormatException e)
+      {
+         throw new IOException(fileName + " holds a value that is not a number.", e);
+      }
+
+      if (inputDownsample > 1)
+      {
+         downsampleImage(raw, input, inputDownsample);
+      }
+   } // readCaseFile(String fileName, double[] input)
+
+/*
+ * Shrinks the imageRows by imageCols image at the start of a case's inputs by averaging each factor by factor block
+ * of pixels. Rows and columns left over at the bottom and right edges are dropped. Nothing is allocated.
+ * 
+ * @param image  inputs holding the full-size image, row by row
+ * @param dest   buffer of at least (imageRows / factor) * (imageCols / factor) entries for the smaller image
+ * @param factor number of pixels averaged in each direction
+ */
+   public static void downsampleImage(double[] image, double[] dest, int factor)
+   {
+      int rows = imageRows / factor;
+      int cols = imageCols / factor;
+      int row, col, r, c;
+      double sum;
+      for (row = 0; row < rows; row++)
+      {
+         for (col = 0; col < cols; col++)
+         {
+            sum = 0.0;
+            for (r = row * factor; r < (row + 1) * factor; r++)
+            {
+               for (c = col * factor; c < (col + 1) * factor; c++)
+               {
+                  sum += image[r * imageCols + c];
+               }
+            }
+            dest[row * cols + col] = sum / (factor * factor);
+         } // for (col = 0; col < cols; col++)
+      } // for (row = 0; row < rows; row++)
+   } // downsampleImage(double[] image, double[] dest, int factor)
+
+/*
+ * Gives the class of a test case from its file name. Files are named {set}-{fingers}.txt, so the class is the
+ * number after the last dash, counting from 1.
+ * 
+ * @param fileName name of the test case file
+ * @return int index of the output node for the class
+ */
+   public static int labelFromFileName(String fileName)
+   {
+      String baseName = new File(fileName).getName();
+      int dash = baseName.lastIndexOf('-');
+      int dot = baseName.lastIndexOf('.');
+      int label = Integer.parseInt(baseName.substring(dash + 1, dot > dash ? dot : baseName.length())) - 1;
+      if (label < 0 || label >= nLayers[outLayer])
+      {
+         throw new IllegalArgumentException(fileName + " names class " + (label + 1) + ", but the network only has " 
+               + nLayers[outLayer] + " outputs.");
+      }
+      return label;
+   } // labelFromFileName(String fileName)
+   
+/*
+ * Randomly generates weight values within the min and max threshold values. The rows of each layer are split into
+ * fixed blocks, and each block is filled in parallel from its own split of the seeded generator. The splits are made
+ * in order before any block runs, so the weights only depend on randomSeed and not on the number of threads.
+ */
+   public static void populateWeightsRandom()
+   {
+      int blocks;
+      for (alpha = 1; alpha < numLayers; alpha++)
+      {
+         double[][] layerWeights = weights[alpha];
+         int rows = weightRows[alpha];
+         int cols = weightCols[alpha];
+         blocks = (rows + RANDOM_BLOCK_ROWS - 1) / RANDOM_BLOCK_ROWS;
+         SplittableRandom[] generators = new SplittableRandom[blocks];
+         for (int block = 0; block < blocks; block++)
+         {
+            generators[block] = random.split();
+         }
+
+         IntStream.range(0, blocks).parallel().forEach(block ->
+         {
+            int lastRow = Math.min(rows, (block + 1) * RANDOM_BLOCK_ROWS);
+            for (int row = block * RANDOM_BLOCK_ROWS; row < lastRow; row++)
+            {
+               for (int col = 0; col < cols; col++)
+               {
+                  layerWeights[row][col] = generateRandWeight(generators[block]);
+               }
+            }
+         });
+      } // for (alpha = 1; alpha < numLayers; alpha++)
+   } // populateWeightsRandom()
+
+/*
+ * Trains the model by optimizing weights, applying a delta each iteration. 
+ * This method uses trains with backpropogation until either the max iterations or error threshold 
+ * has been reached. If augmentImages is set, each iteration trains on the newest augmented copy of the test cases
+ * that the background threads have finished.
+ */
+   public static void train()
+   {
+      totalIters = 0;
+      isTrainingDone = false;
+      trainingInputs = testCases;
+      if (augmentImages)
+      {
+         startAugmentation();
+      }
+
+      while (!isTrainingDone)
+      {
+         if (augmentImages)
+         {
+            swapAugmentedBatch();
+         }
+         totalError = 0.0;
+         for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++) // loop through all test cases
+         {
+            trainSingleCase();
+         }
+
+         averageError = totalError / (double) numTestCases;
+         totalIters++;
+         isTrainingDone = totalIters >= maxIters || averageError <= errorThreshold;
+
+         if (keepAlive != 0 && totalIters % keepAlive == 0)
+         {
+            logProgress(totalIters, averageError);
+         }
+
+      } // while (!isTrainingDone)
+      flushLog();
+
+      if (augmentImages)
+      {
+         stopAugmentation();
+      }
+   } // train()
+
+/*
+ * Runs one backpropogation step on test case tCaseIter: a forward pass, the weight updates, and the error for the case,
+ * which is added to totalError.
+ */
+   public static void trainSingleCase()
+   {
+      for (m = 0; m < nLayers[inLayer]; m++)                  // place test cases in input activations array
+      {
+         activations[inLayer][m] = trainingInputs[tCaseIter][m];
+      }
+
+      for (alpha = 1; alpha < numLayers - 1; alpha++)
+      {
+         if (layerTypes[alpha] == LAYER_MAX_POOL || layerTypes[alpha] == LAYER_AVG_POOL)
+         {
+            poolForward(alpha, activations[alpha - 1], activations[alpha]);
+            continue;
+         }
+         forwardLayer(weights[alpha], alpha, activations[alpha - 1], theta[alpha]);
+         for (beta = 0; beta < nLayers[alpha]; beta++)
+         {
+            activations[alpha][beta] = activationFunction(theta[alpha][beta]);
+         }
+         if (dropoutMasks != null && layerTypes[alpha] == LAYER_DENSE)
+         {
+            applyDropout(alpha);
+         }
+      } // for (alpha = 1; alpha < numLayers; alpha++)
+
+      alpha = outLayer;
+      gemv(activations[alpha - 1], nLayers[alpha - 1], weights[alpha], theta[alpha], nLayers[alpha]);
+      if (softmaxHead)        // the softmax and cross-entropy derivatives cancel, leaving target - output
+      {
+         softmax(theta[alpha], activations[alpha], nLayers[alpha]);
+         for (beta = 0; beta < nLayers[alpha]; beta++)
+         {
+            psi[alpha][beta] = targetOutput[tCaseIter][beta] - activations[alpha][beta];
+         }
+      }
+      else
+      {
+         for (beta = 0; beta < nLayers[alpha]; beta++)        // separate loop for output layer
+         {
+            activations[alpha][beta] = activationFunction(theta[alpha][beta]);
+            psi[alpha][beta] = 
+               (targetOutput[tCaseIter][beta] - activations[alpha][beta]) * derivativeActivationFunction(theta[alpha][beta]);
+         }
+      } // if (softmaxHead)...else
+
+/*
+ * Performs weight optimization using backpropogation. Each weight matrix is traversed once, gathering the omegas
+ * for the layer below into its psi row while the matrix is updated and decayed.
+ */
+      for (alpha = outLayer - 1; alpha > inLayer; alpha--)
+      {
+         backpropTypedLayer(weights[alpha + 1], alpha + 1, activations[alpha], psi[alpha + 1], lambda, psi[alpha],
+               weightDecay);
+         if (layerTypes[alpha] == LAYER_DENSE || layerTypes[alpha] == LAYER_CONV)   // pooling has no activation function
+         {
+            for (gamma = 0; gamma < nLayers[alpha]; gamma++)
+            {
+               psi[alpha][gamma] *= derivativeActivationFunction(theta[alpha][gamma]);
+            }
+         }
+         if (dropoutMasks != null && layerTypes[alpha] == LAYER_DENSE)   // dropped nodes pass nothing back
+         {
+            for (gamma = 0; gamma < nLayers[alpha]; gamma++)
+            {
+               psi[alpha][gamma] *= (dropoutMasks[alpha][gamma / Long.SIZE] & 1L << gamma) != 0 ? 1.0 / (1.0 - dropoutRate) 
+                     : 0.0;
+            }
+         }
+      } // for (alpha = outLayer - 1; alpha > 0; alpha--) 
+
+      alpha = inLayer;
+      backpropTypedLayer(weights[alpha + 1], alpha + 1, activations[alpha], psi[alpha + 1], lambda, null, weightDecay);
+
+      if (!reuseForwardError)      // otherwise the error comes from the forward pass above, before the update
+      {
+         runSingleOutput();
+      }
+      calculateError();
+   } // trainSingleCase()
+
+/*
+ * Drops hidden nodes of one layer for the current case. Each node is kept with probability 1 - dropoutRate and
+ * recorded in the layer's preallocated bit set, and kept activations are scaled up by 1 / (1 - dropoutRate) so that
+ * inference can use the full network unchanged. Nothing is allocated.
+ * 
+ * @param layer index of a fully connected hidden layer
+ */
+   public static void applyDropout(int layer)
+   {
+      long[] mask = dropoutMasks[layer];
+      double keptScale = 1.0 / (1.0 - dropoutRate);
+      Arrays.fill(mask, 0L);
+      for (int node = 0; node < nLayers[layer]; node++)
+      {
+         if (dropoutRandom.nextDouble() >= dropoutRate)
+         {
+            mask[node / Long.SIZE] |= 1L << node;
+            activations[layer][node] *= keptScale;
+         }
+         else
+         {
+            activations[layer][node] = 0.0;
+         }
+      } // for (int node = 0; node < nLayers[layer]; node++)
+   } // applyDropout(int layer)
+
+/*
+ * Starts the background threads that prepare augmented copies of the training cases. There is one buffer per thread
+ * plus the one being trained on; each thread repeatedly takes a free buffer, fills it with a freshly augmented copy
+ * of every test case and hands it to the training loop, using its own split of the seeded generator.
+ */
+   public static void startAugmentation()
+   {
+      int threads = Math.max(augmentThreads, 1);
+      freeBatches = new ArrayBlockingQueue<>(threads + 1);
+      readyBatches = new ArrayBlockingQueue<>(threads + 1);
+      augmentedBatchesUsed = 0;
+      for (int batch = 0; batch <= threads; batch++)
+      {
+         freeBatches.add(new double[numTestCases][nLayers[inLayer]]);
+      }
+
+      augmentPool = Executors.newFixedThreadPool(threads, task ->
+      {
+         Thread thread = new Thread(task, "augmentation");
+         thread.setDaemon(true);
+         return thread;
+      });
+      for (int thread = 0; thread < threads; thread++)
+      {
+         SplittableRandom generator = random.split();
+         augmentPool.submit(() ->
+         {
+            try
+            {
+               while (!Thread.currentThread().isInterrupted())
+               {
+                  double[][] batch = freeBatches.take();
+                  for (int tCase = 0; tCase < numTestCases; tCase++)
+                  {
+                     augmentCase(testCases[tCase], batch[tCase], generator);
+                  }
+                  readyBatches.put(batch);
+               }
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+            }
+         });
+      } // for (int thread = 0; thread < threads; thread++)
+   } // startAugmentation()
+
+/*
+ * Writes one randomly augmented copy of an image case. The first imageRows * imageCols inputs are treated as a
+ * grayscale image stored row by row. The image is shifted by up to augmentMaxShift pixels each way, mirrored
+ * left to right half of the time if augmentFlip is set, scaled in brightness by up to augmentBrightness, and has
+ * gaussian noise of size augmentNoise added to its nonzero pixels only, so the background stays zero and the sparse
+ * kernels keep skipping it. Any inputs after the image are copied unchanged.
+ * 
+ * @param source    the original case
+ * @param dest      receives the augmented case
+ * @param generator random number generator owned by the calling thread
+ */
+   public static void augmentCase(double[] source, double[] dest, SplittableRandom generator)
+   {
+      int shiftRow = augmentMaxShift > 0 ? generator.nextInt(-augmentMaxShift, augmentMaxShift + 1) : 0;
+      int shiftCol = augmentMaxShift > 0 ? generator.nextInt(-augmentMaxShift, augmentMaxShift + 1) : 0;
+      boolean flip = augmentFlip && generator.nextBoolean();
+      double brightness = 1.0 + (generator.nextDouble() * 2.0 - 1.0) * augmentBrightness;
+      int row, col, fromRow, fromCol;
+      double pixel;
+
+      for (row = 0; row < imageRows; row++)
+      {
+         fromRow = row - shiftRow;
+         for (col = 0; col < imageCols; col++)
+         {
+            fromCol = (flip ? imageCols - 1 - col : col) - shiftCol;
+            pixel = 0.0;
+            if (fromRow >= 0 && fromRow < imageRows && fromCol >= 0 && fromCol < imageCols)
+            {
+               pixel = source[fromRow * imageCols + fromCol];
+            }
+            if (pixel != 0.0)
+            {
+               pixel = pixel * brightness + gaussian(generator) * augmentNoise;
+               pixel = Math.min(Math.max(pixel, 0.0), 1.0);
+            }
+            dest[row * imageCols + col] = pixel;
+         }
+      } // for (row = 0; row < imageRows; row++)
+
+      System.arraycopy(source, imageRows * imageCols, dest, imageRows * imageCols, nLayers[inLayer] - imageRows * imageCols);
+   } // augmentCase(double[] source, double[] dest, SplittableRandom generator)
+
+/*
+ * Draws a standard normal value with the Box-Muller transform, since SplittableRandom has no nextGaussian().
+ * 
+ * @param generator the generator to draw from
+ * @return double a normally distributed value with mean 0 and standard deviation 1
+ */
+   public static double gaussian(SplittableRandom generator)
+   {
+      return Math.sqrt(-2.0 * Math.log(1.0 - generator.nextDouble())) * Math.cos(2.0 * Math.PI * generator.nextDouble());
+   } // gaussian(SplittableRandom generator)
+
+/*
+ * Switches the training loop to the newest finished augmented batch, if there is one, and returns the batch it was
+ * using to the background threads. This never waits: if no new batch is ready, training goes on with the current one.
+ * Since which batch is newest depends on thread timing, augmented training is not repeatable even with a fixed
+ * randomSeed.
+ */
+   public static void swapAugmentedBatch()
+   {
+      double[][] newest = readyBatches.poll();
+      double[][] next;
+      if (newest != null)
+      {
+         while ((next = readyBatches.poll()) != null)       // skip to the newest batch, recycling older ones
+         {
+            freeBatches.offer(newest);
+            newest = next;
+         }
+         if (trainingInputs != testCases)
+         {
+            freeBatches.offer(trainingInputs);
+         }
+         trainingInputs = newest;
+         augmentedBatchesUsed++;
+      } // if (newest != null)
+   } // swapAugmentedBatch()
+
+/*
+ * Stops the augmentation threads and prints how many augmented batches the training loop used.
+ */
+   public static void stopAugmentation()
+   {
+      augmentPool.shutdownNow();
+      trainingInputs = testCases;
+      System.out.println("Training used " + augmentedBatchesUsed + " augmented batches in " + totalIters + " iterations.");
+   } // stopAugmentation()
+
+/*
+ * Matrix-vector product for one layer, out[beta] = sum over gamma of in[gamma] * w[gamma][beta]. Since each row
+ * w[gamma] is contiguous, the columns are split into blocks of kernelBlockSize so the block of out being summed stays
+ * in cache, and four rows are folded into each pass over the block so out is loaded and stored a quarter as often.
+ * Groups of four inputs that are all zero, which is most of a background-removed image, are skipped.
+ * 
+ * @param in      input activations
+ * @param inSize  number of inputs used
+ * @param w       weights of the layer, indexed [gamma][beta]
+ * @param out     receives the weighted sums
+ * @param outSize number of outputs used
+ */
+   public static void gemv(double[] in, int inSize, double[][] w, double[] out, int outSize)
+   {
+      int blockStart, blockEnd, row, col;
+      double a0, a1, a2, a3;
+      double[] r0, r1, r2, r3;
+
+      for (blockStart = 0; blockStart < outSize; blockStart += kernelBlockSize)
+      {
+         blockEnd = Math.min(blockStart + kernelBlockSize, outSize);
+         for (col = blockStart; col < blockEnd; col++)
+         {
+            out[col] = 0.0;
+         }
+
+         for (row = 0; row + 3 < inSize; row += 4)
+         {
+            a0 = in[row];
+            a1 = in[row + 1];
+            a2 = in[row + 2];
+            a3 = in[row + 3];
+            if (a0 != 0.0 || a1 != 0.0 || a2 != 0.0 || a3 != 0.0)
+            {
+               r0 = w[row];
+               r1 = w[row + 1];
+               r2 = w[row + 2];
+               r3 = w[row + 3];
+               for (col = blockStart; col < blockEnd; col++)
+               {
+                  out[col] += a0 * r0[col] + a1 * r1[col] + a2 * r2[col] + a3 * r3[col];
+               }
+            }
+         } // for (row = 0; row + 3 < inSize; row += 4)
+
+         for (; row < inSize; row++)
+         {
+            a0 = in[row];
+            r0 = w[row];
+            for (col = blockStart; col < blockEnd; col++)
+            {
+               out[col] += a0 * r0[col];
+            }
+         }
+      } // for (blockStart = 0; blockStart < outSize; blockStart += kernelBlockSize)
+   } // gemv(double[] in, int inSize, double[][] w, double[] out, int outSize)
+
+/*
+ * Fused backward kernel for one layer, without weight decay.
+ * 
+ * @param w       weights of the layer, indexed [gamma][beta]
+ * @param in      activations feeding the layer
+ * @param inSize  number of rows used
+ * @param delta   psi values of the layer
+ * @param outSize number of columns used
+ * @param scale   learning factor
+ * @param omega   receives one omega per row, or null if the omegas are not needed
+ */
+   public static void backpropLayer(double[][] w, double[] in, int inSize, double[] delta, int outSize, double scale,
+                                    double[] omega)
+   {
+      backpropLayer(w, in, inSize, delta, outSize, scale, omega, 0.0);
+   } // backpropLayer(double[][] w, double[] in, int inSize, double[] delta, int outSize, double scale, double[] omega)
+
+/*
+ * Fused backward kernel for one layer. Each row w[gamma] is read once: its dot product with delta gives the omega
+ * for gamma using the weights from before this update, and the same pass applies the rank-one update
+ * w[gamma][beta] += scale * in[gamma] * delta[beta]. With weight decay, the same pass also shrinks every weight by
+ * 1 - scale * decay, which is a gradient step on an L2 penalty of decay / 2 times the squared weights. When omega is
+ * null (the input layer) only the update is done, and without decay, rows whose input is zero are skipped since they
+ * would not change.
+ * 
+ * @param w       weights of the layer, indexed [gamma][beta]
+ * @param in      activations feeding the layer
+ * @param inSize  number of rows used
+ * @param delta   psi values of the layer
+ * @param outSize number of columns used
+ * @param scale   learning factor
+ * @param omega   receives one omega per row, or null if the omegas are not needed
+ * @param decay   L2 weight decay, 0 for none
+ */
+   public static void backpropLayer(double[][] w, double[] in, int inSize, double[] delta, int outSize, double scale,
+                                    double[] omega, double decay)
+   {
+      int row, col;
+      double a, sum, d;
+      double shrink = 1.0 - scale * decay;
+      double[] r;
+      for (row = 0; row < inSize; row++)
+      {
+         a = scale * in[row];
+         r = w[row];
+         if (omega != null && decay == 0.0)
+         {
+            sum = 0.0;
+            for (col = 0; col < outSize; col++)
+            {
+               d = delta[col];
+               sum += r[col] * d;
+               r[col] += a * d;
+            }
+            omega[row] = sum;
+         }
+         else if (omega != null)
+         {
+            sum = 0.0;
+            for (col = 0; col < outSize; col++)
+            {
+               d = delta[col];
+               sum += r[col] * d;
+               r[col] = shrink * r[col] + a * d;
+            }
+            omega[row] = sum;
+         }
+         else if (decay != 0.0)
+         {
+            for (col = 0; col < outSize; col++)
+            {
+               r[col] = shrink * r[col] + a * delta[col];
+            }
+         }
+         else if (a != 0.0)
+         {
+            for (col = 0; col < outSize; col++)
+            {
+               r[col] += a * delta[col];
+            }
+         }
+      } // for (row = 0; row < inSize; row++)
+   } // backpropLayer(double[][] w, double[] in, int inSize, double[] delta, int outSize, double scale, double[] omega, ...)
+
+/*
+ * Finds the weighted sums of one layer, before the activation function, for any layer type. Pooling layers have no
+ * weights or activation function, so their pooled values are written instead.
+ * 
+ * @param w     weights of the layer
+ * @param layer index of the layer being computed
+ * @param in    activations of the layer below
+ * @param out   buffer for the layer's weighted sums
+ */
+   public static void forwardLayer(double[][] w, int layer, double[] in, double[] out)
+   {
+      if (layerTypes[layer] == LAYER_CONV)
+      {
+         if (parallelConvolution && layerChannels[layer] > 1 && (long) nLayers[layer] * weightCols[layer] >= PARALLEL_CONV_WORK)
+         {
+            IntStream.range(0, layerChannels[layer]).parallel().forEach(channel -> convForward(w, layer, in, out, channel));
+         }
+         else
+         {
+            for (int channel = 0; channel < layerChannels[layer]; channel++)
+            {
+               convForward(w, layer, in, out, channel);
+            }
+         }
+      } // if (layerTypes[layer] == LAYER_CONV)
+      else if (layerTypes[layer] != LAYER_DENSE)
+      {
+         poolForward(layer, in, out);
+      }
+      else
+      {
+         gemv(in, nLayers[layer - 1], w, out, nLayers[layer]);
+      }
+   } // forwardLayer(double[][] w, int layer, double[] in, double[] out)
+
+/*
+ * Convolves every input channel with its filter for one output channel, by direct convolution. For each filter
+ * weight, the whole shifted input plane is scaled and added to the output plane, so the innermost loop runs along
+ * contiguous rows of both.
+ * 
+ * @param w       weights of the convolution layer, one row of filters per output channel
+ * @param layer   index of the convolution layer
+ * @param in      activations of the layer below
+ * @param out     buffer for the layer's weighted sums
+ * @param channel output channel to compute
+ */
+   public static void convForward(double[][] w, int layer, double[] in, double[] out, int channel)
+   {
+      int inRows = layerRows[layer - 1], inCols = layerCols[layer - 1];
+      int rows = layerRows[layer], cols = layerCols[layer], kernel = layerKernel[layer];
+      int plane = channel * rows * cols;
+      int inChannel, kRow, kCol, row, col, inStart, outStart;
+      double weight;
+      double[] filter = w[channel];
+
+      Arrays.fill(out, plane, plane + rows * cols, 0.0);
+      for (inChannel = 0; inChannel < layerChannels[layer - 1]; inChannel++)
+      {
+         for (kRow = 0; kRow < kernel; kRow++)
+         {
+            for (kCol = 0; kCol < kernel; kCol++)
+            {
+               weight = filter[(inChannel * kernel + kRow) * kernel + kCol];
+               for (row = 0; row < rows; row++)
+               {
+                  inStart = (inChannel * inRows + row + kRow) * inCols + kCol;
+                  outStart = plane + row * cols;
+                  for (col = 0; col < cols; col++)
+                  {
+                     out[outStart + col] += weight * in[inStart + col];
+                  }
+               }
+            } // for (kCol = 0; kCol < kernel; kCol++)
+         } // for (kRow = 0; kRow < kernel; kRow++)
+      } // for (inChannel = 0; inChannel < layerChannels[layer - 1]; inChannel++)
+   } // convForward(double[][] w, int layer, double[] in, double[] out, int channel)
+
+/*
+ * Pools every channel of the layer below over windows of layerKernel by layerKernel pixels, taking either the
+ * maximum or the average of each window.
+ * 
+ * @param layer index of the pooling layer
+ * @param in    activations of the layer below
+ * @param out   buffer for the pooled values
+ */
+   public static void poolForward(int layer, double[] in, double[] out)
+   {
+      int inRows = layerRows[layer - 1], inCols = layerCols[layer - 1];
+      int rows = layerRows[layer], cols = layerCols[layer], size = layerKernel[layer];
+      int channel, row, col, r, c, index;
+      double value, pooled;
+      boolean max = layerTypes[layer] == LAYER_MAX_POOL;
+
+      for (channel = 0; channel < layerChannels[layer]; channel++)
+      {
+         for (row = 0; row < rows; row++)
+         {
+            for (col = 0; col < cols; col++)
+            {
+               pooled = max ? Double.NEGATIVE_INFINITY : 0.0;
+               for (r = row * size; r < (row + 1) * size; r++)
+               {
+                  for (c = col * size; c < (col + 1) * size; c++)
+                  {
+                     value = in[(channel * inRows + r) * inCols + c];
+                     pooled = max ? Math.max(pooled, value) : pooled + value;
+                  }
+               }
+               index = (channel * rows + row) * cols + col;
+               out[index] = max ? pooled : pooled / (size * size);
+            } // for (col = 0; col < cols; col++)
+         } // for (row = 0; row < rows; row++)
+      } // for (channel = 0; channel < layerChannels[layer]; channel++)
+   } // poolForward(int layer, double[] in, double[] out)
+
+/*
+ * Runs backpropLayer for any layer type: the omegas of the layer below are gathered from the old weights, then the
+ * weights are moved by scale times their gradient. Pooling layers only pass the deltas back to the inputs they used.
+ * 
+ * @param w     weights of the layer
+ * @param layer index of the layer whose weights are updated
+ * @param in    activations of the layer below
+ * @param delta psi values of the layer
+ * @param scale learning factor
+ * @param omega buffer for the omegas of the layer below, or null for the input layer
+ * @param decay L2 weight decay, 0 for none
+ */
+   public static void backpropTypedLayer(double[][] w, int layer, double[] in, double[] delta, double scale, double[] omega,
+                                         double decay)
+   {
+      if (layerTypes[layer] == LAYER_CONV)
+      {
+         boolean parallel = parallelConvolution && (long) nLayers[layer] * weightCols[layer] >= PARALLEL_CONV_WORK;
+         if (omega != null)
+         {
+            IntStream inChannels = IntStream.range(0, layerChannels[layer - 1]);
+            (parallel ? inChannels.parallel() : inChannels).forEach(inChannel -> convOmega(w, layer, delta, omega, inChannel));
+         }
+         IntStream channels = IntStream.range(0, layerChannels[layer]);
+         (parallel ? channels.parallel() : channels).forEach(channel -> convUpdate(w, layer, in, delta, scale, decay, 
+               channel));
+      }
+      else if (layerTypes[layer] != LAYER_DENSE)
+      {
+         if (omega != null)
+         {
+            poolBackward(layer, in, delta, omega);
+         }
+      }
+      else
+      {
+         backpropLayer(w, in, nLayers[layer - 1], delta, nLayers[layer], scale, omega, decay);
+      }
+   } // backpropTypedLayer(double[][] w, int layer, double[] in, double[] delta, double scale, double[] omega, ...)
+
+/*
+ * Finds the omegas of one input channel of a convolution layer: every output delta is spread back over the input
+ * pixels its filter covered, weighted by the filter.
+ * 
+ * @param w         weights of the convolution layer, before they are updated
+ * @param layer     index of the convolution layer
+ * @param delta     psi values of the convolution layer
+ * @param omega     buffer for the omegas of the layer below
+ * @param inChannel input channel to compute
+ */
+   public static void convOmega(double[][] w, int layer, double[] delta, double[] omega, int inChannel)
+   {
+      int inRows = layerRows[layer - 1], inCols = layerCols[layer - 1];
+      int rows = layerRows[layer], cols = layerCols[layer], kernel = layerKernel[layer];
+      int channel, kRow, kCol, row, col, inStart, outStart;
+      double weight;
+
+      Arrays.fill(omega, inChannel * inRows * inCols, (inChannel + 1) * inRows * inCols, 0.0);
+      for (channel = 0; channel < layerChannels[layer]; channel++)
+      {
+         for (kRow = 0; kRow < kernel; kRow++)
+         {
+            for (kCol = 0; kCol < kernel; kCol++)
+            {
+               weight = w[channel][(inChannel * kernel + kRow) * kernel + kCol];
+               for (row = 0; row < rows; row++)
+               {
+                  inStart = (inChannel * inRows + row + kRow) * inCols + kCol;
+                  outStart = (channel * rows + row) * cols;
+                  for (col = 0; col < cols; col++)
+                  {
+                     omega[inStart + col] += weight * delta[outStart + col];
+                  }
+               }
+            } // for (kCol = 0; kCol < kernel; kCol++)
+         } // for (kRow = 0; kRow < kernel; kRow++)
+      } // for (channel = 0; channel < layerChannels[layer]; channel++)
+   } // convOmega(double[][] w, int layer, double[] delta, double[] omega, int inChannel)
+
+/*
+ * Updates the filters of one output channel of a convolution layer. Each filter weight moves by scale times the sum,
+ * over the output plane, of its delta times the input pixel it was applied to, after shrinking by 1 - scale * decay.
+ * 
+ * @param w       weights of the convolution layer
+ * @param layer   index of the convolution layer
+ * @param in      activations of the layer below
+ * @param delta   psi values of the convolution layer
+ * @param scale   learning factor
+ * @param decay   L2 weight decay, 0 for none
+ * @param channel output channel to update
+ */
+   public static void convUpdate(double[][] w, int layer, double[] in, double[] delta, double scale, double decay,
+                                 int channel)
+   {
+      int inRows = layerRows[layer - 1], inCols = layerCols[layer - 1];
+      int rows = layerRows[layer], cols = layerCols[layer], kernel = layerKernel[layer];
+      int inChannel, kRow, kCol, row, col, inStart, outStart, index;
+      double gradient, shrink = 1.0 - scale * decay;
+      double[] filter = w[channel];
+
+      for (inChannel = 0; inChannel < layerChannels[layer - 1]; inChannel++)
+      {
+         for (kRow = 0; kRow < kernel; kRow++)
+         {
+            for (kCol = 0; kCol < kernel; kCol++)
+            {
+               gradient = 0.0;
+               for (row = 0; row < rows; row++)
+               {
+                  inStart = (inChannel * inRows + row + kRow) * inCols + kCol;
+                  outStart = (channel * rows + row) * cols;
+                  for (col = 0; col < cols; col++)
+                  {
+                     gradient += delta[outStart + col] * in[inStart + col];
+                  }
+               }
+               index = (inChannel * kernel + kRow) * kernel + kCol;
+               filter[index] = shrink * filter[index] + scale * gradient;
+            } // for (kCol = 0; kCol < kernel; kCol++)
+         } // for (kRow = 0; kRow < kernel; kRow++)
+      } // for (inChannel = 0; inChannel < layerChannels[layer - 1]; inChannel++)
+   } // convUpdate(double[][] w, int layer, double[] in, double[] delta, double scale, double decay, int channel)
+
+/*
+ * Passes the deltas of a pooling layer back to the layer below. Max pooling sends each delta to the first input that
+ * held the window's maximum, and average pooling shares it evenly across the window. Inputs outside every window
+ * get an omega of 0.
+ * 
+ * @param layer index of the pooling layer
+ * @param in    activations of the layer below
+ * @param delta psi values of the pooling layer
+ * @param omega buffer for the omegas of the layer below
+ */
+   public static void poolBackward(int layer, double[] in, double[] delta, double[] omega)
+   {
+      int inRows = layerRows[layer - 1], inCols = layerCols[layer - 1];
+      int rows = layerRows[layer], cols = layerCols[layer], size = layerKernel[layer];
+      int channel, row, col, r, c, index, best;
+      double share;
+      boolean max = layerTypes[layer] == LAYER_MAX_POOL;
+
+      Arrays.fill(omega, 0, nLayers[layer - 1], 0.0);
+      for (channel = 0; channel < layerChannels[layer]; channel++)
+      {
+         for (row = 0; row < rows; row++)
+         {
+            for (col = 0; col < cols; col++)
+            {
+               share = delta[(channel * rows + row) * cols + col];
+               best = -1;
+               for (r = row * size; r < (row + 1) * size; r++)
+               {
+                  for (c = col * size; c < (col + 1) * size; c++)
+                  {
+                     index = (channel * inRows + r) * inCols + c;
+                     if (!max)
+                     {
+                        omega[index] = share / (size * size);
+                     }
+                     else if (best < 0 || in[index] > in[best])
+                     {
+                        best = index;
+                     }
+                  }
+               } // for (r = row * size; r < (row + 1) * size; r++)
+               if (max)
+               {
+                  omega[best] = share;
+               }
+            } // for (col = 0; col < cols; col++)
+         } // for (row = 0; row < rows; row++)
+      } // for (channel = 0; channel < layerChannels[layer]; channel++)
+   } // poolBackward(int layer, double[] in, double[] delta, double[] omega)
+
+/*
+ * The matrix-vector product as the network originally computed it, one column at a time. Only used as the baseline
+ * in benchmarkKernels().
+ * 
+ * @param in      input activations
+ * @param inSize  number of inputs used
+ * @param w       weights of the layer, indexed [gamma][beta]
+ * @param out     receives the weighted sums
+ * @param outSize number of outputs used
+ */
+   public static void naiveGemv(double[] in, int inSize, double[][] w, double[] out, int outSize)
+   {
+      int row, col;
+      double thetaSum;
+      for (col = 0; col < outSize; col++)
+      {
+         thetaSum = 0.0;
+         for (row = 0; row < inSize; row++)
+         {
+            thetaSum += in[row] * w[row][col];
+         }
+         out[col] = thetaSum;
+      }
+   } // naiveGemv(double[] in, int inSize, double[][] w, double[] out, int outSize)
+
+/*
+ * Picks the column block size for gemv() by timing a few candidates on the widest layer of this network. Only the
+ * first TUNING_ROWS input rows are timed, since the block size only decides how much of the output row stays in cache
+ * and every row is handled the same way. Layers no wider than the smallest candidate fit in cache anyway and are not
+ * blocked.
+ * 
+ * @return int the fastest block size found
+ */
+   public static int tuneKernelBlockSize()
+   {
+      int[] candidates = {64, 128, 256, 512, 1024};
+      int widest = 1;
+      int rows = 1;
+      int best, candidate, rep;
+      long start, time, bestTime;
+      for (alpha = 1; alpha < numLayers; alpha++)
+      {
+         if (layerTypes[alpha] == LAYER_DENSE && nLayers[alpha] > widest)
+         {
+            widest = nLayers[alpha];
+            rows = Math.min(nLayers[alpha - 1], TUNING_ROWS);
+         }
+      }
+
+      best = widest;
+      if (widest > candidates[0])
+      {
+         double[][] w = new double[rows][widest];
+         double[] in = new double[rows];
+         double[] out = new double[widest];
+         for (gamma = 0; gamma < rows; gamma++)
+         {
+            in[gamma] = ThreadLocalRandom.current().nextDouble(-1.0, 1.0);
+            for (beta = 0; beta < widest; beta++)
+            {
+               w[gamma][beta] = ThreadLocalRandom.current().nextDouble(-1.0, 1.0);
+            }
+         }
+
+         bestTime = Long.MAX_VALUE;
+         for (int c : candidates)
+         {
+            candidate = Math.min(c, widest);
+            kernelBlockSize = candidate;
+            for (rep = 0; rep < 5; rep++)       // warm-up
+            {
+               gemv(in, rows, w, out, widest);
+            }
+            start = System.nanoTime();
+            for (rep = 0; rep < 10; rep++)
+            {
+               gemv(in, rows, w, out, widest);
+            }
+            time = System.nanoTime() - start;
+            if (time < bestTime)
+            {
+               bestTime = time;
+               best = candidate;
+            }
+         } // for (int c : candidates)
+         System.out.println("Kernel block size tuned to " + best + " columns.");
+      } // if (widest > candidates[0])
+      return best;
+   } // tuneKernelBlockSize()
+
+/*
+ * Times the original column-at-a-time loop against gemv() for a range of layer shapes and prints the results,
+ * starting from the 13000-wide input layer and going up to wide hidden layers. The two only sum in a different order,
+ * so a shape where their outputs differ by more than rounding is a failed check, and the run exits with status 1.
+ */
+   public static void benchmarkKernels()
+   {
+      int[][] shapes = {{13000, 25}, {13000, 128}, {13000, 512}, {512, 128}, {2000, 2000}};
+      int reps = 20;
+      int rows, cols, rep;
+      long start, naiveTime, blockedTime;
+      int savedBlockSize = kernelBlockSize;
+      double largestDiff;
+
+      System.out.println("Kernel benchmark (average time per matrix-vector product):");
+      for (int[] shape : shapes)
+      {
+         rows = shape[0];
+         cols = shape[1];
+         double[][] w = new double[rows][cols];
+         double[] in = new double[rows];
+         double[] out = new double[cols];
+         double[] expected = new double[cols];
+         for (gamma = 0; gamma < rows; gamma++)
+         {
+            in[gamma] = ThreadLocalRandom.current().nextDouble(-1.0, 1.0);
+            for (beta = 0; beta < cols; beta++)
+            {
+               w[gamma][beta] = ThreadLocalRandom.current().nextDouble(-1.0, 1.0);
+            }
+         }
+         kernelBlockSize = savedBlockSize > 0 ? savedBlockSize : DEFAULT_KERNEL_BLOCK_SIZE;
+
+         for (rep = 0; rep < reps; rep++)          // warm-up
+         {
+            naiveGemv(in, rows, w, out, cols);
+            gemv(in, rows, w, out, cols);
+         }
+         naiveGemv(in, rows, w, expected, cols);
+         largestDiff = 0.0;
+         for (beta = 0; beta < cols; beta++)
+         {
+            largestDiff = Math.max(largestDiff, Math.abs(out[beta] - expected[beta]));
+         }
+         if (largestDiff > 1e-12 * rows)
+         {
+            failedChecks.add("The blocked kernel differs from the original loop by " + largestDiff + " for " + rows 
+                  + " x " + cols + ".");
+         }
+
+         start = System.nanoTime();
+         for (rep = 0; rep < reps; rep++)
+         {
+            naiveGemv(in, rows, w, out, cols);
+         }
+         naiveTime = (System.nanoTime() - start) / reps;
+         start = System.nanoTime();
+         for (rep = 0; rep < reps; rep++)
+         {
+            gemv(in, rows, w, out, cols);
+         }
+         blockedTime = (System.nanoTime() - start) / reps;
+
+         System.out.printf("   %d x %d: original %.3f ms, blocked %.3f ms (%.1fx)\n", rows, cols, naiveTime / 1e6, 
+               blockedTime / 1e6, (double) naiveTime / (double) blockedTime);
+      } // for (int[] shape : shapes)
+      kernelBlockSize = savedBlockSize;
+   } // benchmarkKernels()
+
+/*
+ * Runs a single case for its output. There is no need for truth tables to run this method.
+ */
+   public static void runSingleOutput()
+   {
+      forwardPass(weights, activations);
+   } // runSingleOutput()
+
+/*
+ * Propagates the input layer of the given activation buffers through the network, filling in every other layer.
+ * Only local loop variables are used, so several threads may run this at once on their own buffers. If a forward pass
+ * has been compiled for netConfig, it runs instead.
+ * 
+ * @param w                weights to use, indexed [alpha][gamma][beta]
+ * @param layerActivations activation buffers for every layer, with the input layer already filled in
+ */
+   public static void forwardPass(double[][][] w, double[][] layerActivations)
+   {
+      if (compiledForward != null)
+      {
+         compiledForward.forward(w, layerActivations);
+         return;
+      }
+      forwardHidden(w, layerActivations);
+      gemv(layerActivations[outLayer - 1], nLayers[outLayer - 1], w[outLayer], layerActivations[outLayer], nLayers[outLayer]);
+      applyOutputHead(layerActivations[outLayer], layerActivations[outLayer], nLayers[outLayer]);
+   } // forwardPass(double[][][] w, double[][] layerActivations)
+
+/*
+ * Propagates the input layer through every hidden layer, stopping before the output layer, so callers can evaluate
+ * only the outputs they need.
+ * 
+ * @param w                weights to use, indexed [alpha][gamma][beta]
+ * @param layerActivations activation buffers for every layer, with the input layer already filled in
+ */
+   public static void forwardHidden(double[][][] w, double[][] layerActivations)
+   {
+      int layer, out;
+      for (layer = 1; layer < outLayer; layer++)
+      {
+         forwardLayer(w[layer], layer, layerActivations[layer - 1], layerActivations[layer]);
+         if (layerTypes[layer] == LAYER_DENSE || layerTypes[layer] == LAYER_CONV)
+         {
+            for (out = 0; out < nLayers[layer]; out++)
+            {
+               layerActivations[layer][out] = activationFunction(layerActivations[layer][out]);
+            }
+         }
+      } // for (layer = 1; layer < outLayer; layer++)
+   } // forwardHidden(double[][][] w, double[][] layerActivations)
+
+/*
+ * Compiles a forward pass specialized to netConfig and makes forwardPass(double[][][] w, double[][] layerActivations)
+ * use it. Without a compiler, as on a runtime without the java.compiler module, or if compiling fails, the generic
+ * forward pass stays.
+ */
+   public static void compileForwardPass()
+   {
+      String className = "NLayerForward";
+      long start = System.nanoTime();
+      try
+      {
+         compiledForward = ForwardCompiler.compile(className, generateForwardSource(className));
+      }
+      catch (LinkageError e)                 // javax.tools is not there at all
+      {
+         System.err.println("The java.compiler module is not available.");
+         compiledForward = null;
+      }
+      catch (Throwable e)
+      {
+         System.err.println("The compiled forward pass could not be loaded: " + e);
+         compiledForward = null;
+      }
+
+      if (compiledForward == null)
+      {
+         System.err.println("The generic forward pass will be used.");
+      }
+      else
+      {
+         System.out.println("Compiled the forward pass for " + String.join("-", netConfigStr) + " in " 
+               + (System.nanoTime() - start) / 1000000 + "ms.");
+      }
+   } // compileForwardPass()
+
+/*
+ * Writes the source of a forward pass for the current netConfig. Every layer size is a constant. Layers with at most
+ * UNROLL_LIMIT weights are unrolled completely, with their inputs, weight rows and sums held in locals; larger layers
+ * keep gemv's loop over groups of four rows, skipping all-zero groups, with a constant number of columns. The sums are
+ * added in the same order as gemv, and the sigmoid is written inline exactly as in sigmoid(double x), so the outputs
+ * match the generic forward pass bit for bit. A softmax output head still calls softmax.
+ * 
+ * @param className name of the generated class
+ * @return String the Java source
+ */
+   public static String generateForwardSource(String className)
+   {
+      StringBuilder code = new StringBuilder();
+      int layer, inSize, outSize, row, col, term;
+      boolean sigmoidOut;
+
+      code.append("public final class ").append(className).append(" implements NLayer.CompiledForward\n{\n");
+      code.append("   public void forward(double[][][] w, double[][] a)\n   {\n");
+      for (layer = 1; layer < numLayers; layer++)
+      {
+         inSize = nLayers[layer - 1];
+         outSize = nLayers[layer];
+         sigmoidOut = layer < outLayer || !softmaxHead;
+         code.append("      {\n         double[] in = a[").append(layer - 1).append("], out = a[").append(layer)
+               .append("];\n         double[][] lw = w[").append(layer).append("];\n");
+
+         if (inSize * outSize <= UNROLL_LIMIT)
+         {
+            for (row = 0; row < inSize; row++)
+            {
+               code.append("         double x").append(row).append(" = in[").append(row).append("];\n");
+               code.append("         double[] w").append(row).append(" = lw[").append(row).append("];\n");
+            }
+            for (col = 0; col < outSize; col++)
+            {
+               code.append("         double s").append(col).append(" = 0.0;\n");
+               for (row = 0; row < inSize; row += term)
+               {
+                  term = row + 3 < inSize ? 4 : 1;          // groups of four, as in gemv, then single rows
+                  code.append("         s").append(col).append(" +=");
+                  for (int r = row; r < row + term; r++)
+                  {
+                     code.append(r == row ? " " : " + ").append('x').append(r).append(" * w").append(r).append('[')
+                           .append(col).append(']');
+                  }
+                  code.append(";\n");
+               }
+               code.append("         out[").append(col).append("] = ");
+               code.append(sigmoidOut ? "(1.0 / (1.0 + Math.exp(-s" + col + ")))" : "s" + col).append(";\n");
+            } // for (col = 0; col < outSize; col++)
+         } // if (inSize * outSize <= UNROLL_LIMIT)
+         else
+         {
+            code.append("         int row, col;\n");
+            code.append("         for (col = 0; col < ").append(outSize).append("; col++)\n         {\n");
+            code.append("            out[col] = 0.0;\n         }\n");
+            code.append("         for (row = 0; row + 3 < ").append(inSize).append("; row += 4)\n         {\n");
+            code.append("            double a0 = in[row], a1 = in[row + 1], a2 = in[row + 2], a3 = in[row + 3];\n");
+            code.append("            if (a0 != 0.0 || a1 != 0.0 || a2 != 0.0 || a3 != 0.0)\n            {\n");
+            code.append("               double[] r0 = lw[row], r1 = lw[row + 1], r2 = lw[row + 2], r3 = lw[row + 3];\n");
+            code.append("               for (col = 0; col < ").append(outSize).append("; col++)\n               {\n");
+            code.append("                  out[col] += a0 * r0[col] + a1 * r1[col] + a2 * r2[col] + a3 * r3[col];\n");
+            code.append("               }\n            }\n         }\n");
+            for (row = inSize - inSize % 4; row < inSize; row++)
+            {
+               code.append("         for (col = 0; col < ").append(outSize).append("; col++)\n         {\n");
+               code.append("            out[col] += in[").append(row).append("] * lw[").append(row)
+                     .append("][col];\n         }\n");
+            }
+            if (sigmoidOut)
+            {
+               code.append("         for (col = 0; col < ").append(outSize).append("; col++)\n         {\n");
+               code.append("            out[col] = (1.0 / (1.0 + Math.exp(-out[col])));\n         }\n");
+            }
+         } // if (inSize * outSize <= UNROLL_LIMIT)...else
+
+         if (!sigmoidOut)
+         {
+            code.append("         NLayer.softmax(out, out, ").append(outSize).append(");\n");
+         }
+         code.append("      }\n");
+      } // for (layer = 1; layer < numLayers; layer++)
+      code.append("   }\n}\n");
+      return code.toString();
+   } // generateForwardSource(String className)
+
+/*
+ * Runs one input through the network using the calling thread's workspace and writes the result into a buffer
+ * supplied by the caller. Once the workspace exists, this allocates nothing. While online learning is running, the
+ * weights come from its latest published snapshot, which is never changed after it is published. With the inference
+ * cache on, an input already seen by the same model version is answered from the cache without a forward pass.
+ * Otherwise the outputs come from computeInference(double[] input, double[] output).
+ * 
+ * @param input  input activations, at least nLayers[inLayer] long
+ * @param output buffer receiving the output activations, at least nLayers[outLayer] long
+ */
+   public static void runInference(double[] input, double[] output)
+   {
+      long version = modelVersion;
+      long key = 0;
+      if (cacheKeys != null)
+      {
+         key = hashInput(input, version);
+         if (lookupCache(key, output))
+         {
+            return;
+         }
+      }
+
+      computeInference(input, output);
+
+      if (cacheKeys != null)
+      {
+         storeCache(key, output);
+      }
+   } // runInference(double[] input, double[] output)
+
+/*
+ * Runs one input through the network without the inference cache, using the calling thread's workspace. With a
+ * cascade, the small model gets the first try and the full model only runs if it is not confident.
+ * 
+ * @param input  input activations, at least nLayers[inLayer] long
+ * @param output buffer receiving the output activations, at least nLayers[outLayer] long
+ */
+   public static void computeInference(double[] input, double[] output)
+   {
+      if (cascadeWeights == null || !runCascade(input, output))
+      {
+         double[][] workspace = inferenceWorkspace.get();
+         System.arraycopy(input, 0, workspace[inLayer], 0, nLayers[inLayer]);
+         if (offHeapWeights != null)
+         {
+            forwardPassOffHeap(workspace);
+         }
+         else
+         {
+            forwardPass(servingWeights != null ? servingWeights.get() : weights, workspace);
+         }
+         System.arraycopy(workspace[outLayer], 0, output, 0, nLayers[outLayer]);
+      }
+   } // computeInference(double[] input, double[] output)
+
+/*
+ * Sets up an empty inference cache of inferenceCacheSize slots, rounded up to whole sets of CACHE_WAYS slots and a
+ * power of two sets. The slots are allocated once, so looking up and storing results allocates nothing. Each set has
+ * its own lock and use counter, so threads only wait for each other when their inputs land in the same set.
+ */
+   public static void allocateInferenceCache()
+   {
+      int sets = 1;
+      while (sets * CACHE_WAYS < inferenceCacheSize)
+      {
+         sets *= 2;
+      }
+      cacheKeys = new long[sets * CACHE_WAYS];
+      cacheStamps = new long[sets * CACHE_WAYS];
+      cacheOutputs = new double[sets * CACHE_WAYS][nLayers[outLayer]];
+      cacheClocks = new long[sets];
+      cacheLocks = new Object[sets];
+      for (int set = 0; set < sets; set++)
+      {
+         cacheLocks[set] = new Object();
+      }
+      cacheHits = new LongAdder();
+      cacheMisses = new LongAdder();
+   } // allocateInferenceCache()
+
+/*
+ * Hashes an input vector to 64 bits. The model version seeds the hash, so results of an older model can never be
+ * found under the key of a newer one, even if they are still in the cache.
+ * 
+ * @param input   input activations
+ * @param version version of the model the result is for
+ * @return long the hash
+ */
+   public static long hashInput(double[] input, long version)
+   {
+      long hash = version * 0x9E3779B97F4A7C15L;
+      for (int in = 0; in < nLayers[inLayer]; in++)
+      {
+         hash = (hash ^ Double.doubleToLongBits(input[in])) * 0x9E3779B97F4A7C15L;
+         hash ^= hash >>> 29;
+      }
+      hash ^= hash >>> 33;
+      hash *= 0xFF51AFD7ED558CCDL;
+      hash ^= hash >>> 33;
+      return hash;
+   } // hashInput(double[] input, long version)
+
+/*
+ * Looks up an input in the inference cache and copies the cached outputs if it is there. Only the lock of the set
+ * the key picks is held.
+ * 
+ * @param key    hash of the input from hashInput(double[] input, long version)
+ * @param output buffer the cached outputs are copied into
+ * @return boolean true on a hit
+ */
+   public static boolean lookupCache(long key, double[] output)
+   {
+      int first = (int) (key >>> 32) & (cacheLocks.length - 1);
+      synchronized (cacheLocks[first])
+      {
+         for (int slot = first * CACHE_WAYS; slot < (first + 1) * CACHE_WAYS; slot++)
+         {
+            if (cacheStamps[slot] != 0 && cacheKeys[slot] == key)
+            {
+               cacheStamps[slot] = ++cacheClocks[first];
+               System.arraycopy(cacheOutputs[slot], 0, output, 0, nLayers[outLayer]);
+               cacheHits.increment();
+               return true;
+            }
+         }
+      } // synchronized (cacheLocks[first])
+      cacheMisses.increment();
+      return false;
+   } // lookupCache(long key, double[] output)
+
+/*
+ * Stores the outputs for an input in the inference cache, replacing the least recently used slot of its set. Only the
+ * lock of that set is held.
+ * 
+ * @param key    hash of the input from hashInput(double[] input, long version)
+ * @param output outputs of the network for the input
+ */
+   public static void storeCache(long key, double[] output)
+   {
+      int first = (int) (key >>> 32) & (cacheLocks.length - 1);
+      int oldest = first * CACHE_WAYS;
+      synchronized (cacheLocks[first])
+      {
+         for (int slot = first * CACHE_WAYS; slot < (first + 1) * CACHE_WAYS; slot++)
+         {
+            if (cacheStamps[slot] != 0 && cacheKeys[slot] == key)
+            {
+               return;
+            }
+            if (cacheStamps[slot] < cacheStamps[oldest])
+            {
+               oldest = slot;
+            }
+         }
+         cacheKeys[oldest] = key;
+         cacheStamps[oldest] = ++cacheClocks[first];
+         System.arraycopy(output, 0, cacheOutputs[oldest], 0, nLayers[outLayer]);
+      } // synchronized (cacheLocks[first])
+   } // storeCache(long key, double[] output)
+
+/*
+ * Empties the inference cache one set at a time, so inference in the other sets goes on meanwhile. Its hit and miss
+ * counts are kept.
+ */
+   public static void clearCache()
+   {
+      if (cacheLocks == null)
+      {
+         return;
+      }
+      for (int set = 0; set < cacheLocks.length; set++)
+      {
+         synchronized (cacheLocks[set])
+         {
+            Arrays.fill(cacheStamps, set * CACHE_WAYS, (set + 1) * CACHE_WAYS, 0);
+         }
+      }
+   } // clearCache()
+
+/*
+ * Prints how often inference was answered from the cache.
+ */
+   public static void reportCache()
+   {
+      long hits = cacheHits.sum();
+      long misses = cacheMisses.sum();
+      System.out.printf("Inference cache: %d hits, %d misses (%.1f%% hit rate) in %d slots.%n", hits, misses,
+            hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses), cacheKeys.length);
+   } // reportCache()
+
+/*
+ * Checks the inference cache against the forward pass. Every test case is run through runInference(), which leaves
+ * it in the cache, then looked up again, which must be a hit giving exactly the outputs computeInference() finds for
+ * it without the cache. A miss or a different output is a failed check, so the run exits with status 1. No shared
+ * state is changed, so served and online requests can go on during the check; a case is skipped if a new model is
+ * published while it is checked. The statistics are reported before this runs, so the check does not change them.
+ */
+   public static void checkInferenceCache()
+   {
+      double[] cached = new double[nLayers[outLayer]];
+      double[] direct = new double[nLayers[outLayer]];
+      long version;
+      boolean hit;
+      int missed = 0, wrong = 0, checked = 0;
+
+      for (int tCase = 0; tCase < numTestCases; tCase++)
+      {
+         version = modelVersion;
+         runInference(testCases[tCase], cached);
+         hit = lookupCache(hashInput(testCases[tCase], version), cached);
+         computeInference(testCases[tCase], direct);
+         if (modelVersion != version)
+         {
+            continue;
+         }
+         checked++;
+         if (!hit)
+         {
+            missed++;
+         }
+         else if (!Arrays.equals(cached, direct))
+         {
+            wrong++;
+         }
+      } // for (int tCase = 0; tCase < numTestCases; tCase++)
+
+      System.out.println("Inference cache check: " + (checked - missed) + " of " + checked 
+            + " repeated cases hit, " + wrong + " differed from an uncached forward pass.");
+      if (missed > 0 || wrong > 0)
+      {
+         failedChecks.add("The inference cache missed " + missed + " repeated cases and gave different outputs for " 
+               + wrong + ".");
+      }
+   } // checkInferenceCache()
+
+/*
+ * Loads the small model of the cascade and sets up its per-thread buffers. If it cannot be loaded, every inference
+ * goes to the full model.
+ */
+   public static void loadCascade()
+   {
+      int widest = 0;
+      try
+      {
+         cascadeWeights = readWeightsFile(cascadeWeightsFileName, cascadeLayers);
+      }
+      catch (IOException e)
+      {
+         System.err.println("The cascade will not be used: " + e.getMessage());
+         return;
+      }
+
+      for (int layer = 0; layer < cascadeLayers.length; layer++)
+      {
+         widest = Math.max(widest, cascadeLayers[layer]);
+      }
+      int buffers = widest;
+      cascadeWorkspace = ThreadLocal.withInitial(() -> new double[cascadeLayers.length][buffers]);
+      cascadeAnswered = new AtomicLong();
+      cascadePassed = new AtomicLong();
+      System.out.println("Cascade model " + cascadeNetConfig + " has been loaded from " + cascadeWeightsFileName);
+   } // loadCascade()
+
+/*
+ * Gives the small cascade model the first try at an input. The full-size image is downsampled by cascadeDownsample
+ * and run through the small model, which answers if its top output reaches cascadeThreshold and leads the second by
+ * at least cascadeMargin. Nothing is allocated.
+ * 
+ * @param input  input activations of the full model
+ * @param output buffer the small model's outputs are copied into if it answers
+ * @return boolean true if the small model answered
+ */
+   public static boolean runCascade(double[] input, double[] output)
+   {
+      double[][] workspace = cascadeWorkspace.get();
+      int layer, out, last = cascadeLayers.length - 1;
+      double best = Double.NEGATIVE_INFINITY, second = Double.NEGATIVE_INFINITY;
+
+      downsampleImage(input, workspace[0], cascadeDownsample);
+      for (layer = 1; layer <= last; layer++)
+      {
+         gemv(workspace[layer - 1], cascadeLayers[layer - 1], cascadeWeights[layer], workspace[layer], cascadeLayers[layer]);
+         if (layer == last)
+         {
+            applyOutputHead(workspace[layer], workspace[layer], cascadeLayers[layer]);
+            break;
+         }
+         for (out = 0; out < cascadeLayers[layer]; out++)
+         {
+            workspace[layer][out] = activationFunction(workspace[layer][out]);
+         }
+      } // for (layer = 1; layer <= last; layer++)
+
+      for (out = 0; out < cascadeLayers[last]; out++)
+      {
+         if (workspace[last][out] > best)
+         {
+            second = best;
+            best = workspace[last][out];
+         }
+         else if (workspace[last][out] > second)
+         {
+            second = workspace[last][out];
+         }
+      }
+
+      if (best < cascadeThreshold || best - second < cascadeMargin)
+      {
+         cascadePassed.incrementAndGet();
+         return false;
+      }
+      System.arraycopy(workspace[last], 0, output, 0, cascadeLayers[last]);
+      cascadeAnswered.incrementAndGet();
+      return true;
+   } // runCascade(double[] input, double[] output)
+
+/*
+ * Prints how many inferences the small cascade model answered on its own.
+ */
+   public static void reportCascade()
+   {
+      long answered = cascadeAnswered.get();
+      long total = answered + cascadePassed.get();
+      System.out.printf("Cascade: the small model answered %d of %d inferences (%.1f%%).%n", answered, total, 
+            total == 0 ? 0.0 : 100.0 * answered / total);
+   } // reportCascade()
+
+/*
+ * Ranks the output nodes for one input and keeps only the best k, best first. The hidden layers run as usual, but in
+ * the output layer only the weighted sums are found, and the output head, which never changes the order, is applied
+ * only to the k winners; a softmax only needs the log of its denominator for that. With the inference cache, off-heap
+ * weights or a cascade on, the full outputs come from runInference(double[] input, double[] output) instead, so every
+ * path gives the same answer. Nothing is allocated.
+ * 
+ * @param input   input activations
+ * @param k       number of classes wanted
+ * @param classes buffer of at least k entries for the best output nodes
+ * @param scores  buffer of at least k entries for their outputs
+ */
+   public static void runTopK(double[] input, int k, int[] classes, double[] scores)
+   {
+      double[][] workspace = inferenceWorkspace.get();
+      double[] outputs = workspace[outLayer];
+      boolean activated = cacheKeys != null || offHeapWeights != null || cascadeWeights != null;
+
+      if (activated)
+      {
+         runInference(input, outputs);
+      }
+      else
+      {
+         double[][][] w = servingWeights != null ? servingWeights.get() : weights;
+         System.arraycopy(input, 0, workspace[inLayer], 0, nLayers[inLayer]);
+         forwardHidden(w, workspace);
+         gemv(workspace[outLayer - 1], nLayers[outLayer - 1], w[outLayer], outputs, nLayers[outLayer]);
+      }
+
+      int out, rank;
+      for (rank = 0; rank < k; rank++)
+      {
+         scores[rank] = Double.NEGATIVE_INFINITY;
+      }
+      for (out = 0; out < nLayers[outLayer]; out++)
+      {
+         if (outputs[out] > scores[k - 1])
+         {
+            for (rank = k - 1; rank > 0 && outputs[out] > scores[rank - 1]; rank--)
+            {
+               scores[rank] = scores[rank - 1];
+               classes[rank] = classes[rank - 1];
+            }
+            scores[rank] = outputs[out];
+            classes[rank] = out;
+         }
+      } // for (out = 0; out < nLayers[outLayer]; out++)
+
+      if (!activated)
+      {
+         double logTotal = softmaxHead ? logSumExp(outputs, nLayers[outLayer]) : 0.0;
+         for (rank = 0; rank < k; rank++)
+         {
+            scores[rank] = softmaxHead ? Math.exp(scores[rank] - logTotal) : activationFunction(scores[rank]);
+         }
+      }
+   } // runTopK(double[] input, int k, int[] classes, double[] scores)
+
+/*
+ * Finds the output of a single output node for one input. Only that node's column of the output weights is read,
+ * so the rest of the output layer costs nothing. With the inference cache, off-heap weights or a cascade on, or with
+ * a softmax output, which needs every sum, the full outputs come from runInference(double[] input, double[] output)
+ * instead.
+ * 
+ * @param input input activations
+ * @param node  index of the output node
+ * @return double the output of the node
+ */
+   public static double runOutputNeuron(double[] input, int node)
+   {
+      double[][] workspace = inferenceWorkspace.get();
+      if (cacheKeys != null || offHeapWeights != null || cascadeWeights != null || softmaxHead)
+      {
+         runInference(input, workspace[outLayer]);
+         return workspace[outLayer][node];
+      }
+
+      double[][][] w = servingWeights != null ? servingWeights.get() : weights;
+      double[] hidden = workspace[outLayer - 1];
+      double thetaSum = 0.0;
+      System.arraycopy(input, 0, workspace[inLayer], 0, nLayers[inLayer]);
+      forwardHidden(w, workspace);
+      for (int in = 0; in < nLayers[outLayer - 1]; in++)
+      {
+         thetaSum += hidden[in] * w[outLayer][in][node];
+      }
+      return activationFunction(thetaSum);
+   } // runOutputNeuron(double[] input, int node)
+
+/*
+ * Runs every test case through runTopK(double[] input, int k, int[] classes, double[] scores), keeping the best topK
+ * classes of each instead of all of its outputs.
+ */
+   public static void runTopKOutput()
+   {
+      topClasses = new int[numTestCases][topK];
+      topScores = new double[numTestCases][topK];
+      for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++)
+      {
+         runTopK(testCases[tCaseIter], topK, topClasses[tCaseIter], topScores[tCaseIter]);
+         if (firstResultNanos == 0)
+         {
+            firstResultNanos = System.nanoTime();
+         }
+      }
+   } // runTopKOutput()
+
+/*
+ * Reports the best topK classes of every test case next to the class it should have, in place of the truth table.
+ */
+   public static void reportTopK()
+   {
+      int rank, labelled = 0, correct = 0;
+      System.out.println("----------------------------------------------");
+      System.out.println("The network has finished running. ");
+      System.out.println("----------------------------------------------");
+      System.out.println("Best " + topK + " classes of each case, with their outputs.\n");
+      for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++)
+      {
+         System.out.print(ANSI_BOLD + caseFileNames[tCaseIter] + ANSI_RESET 
+               + (caseLabels[tCaseIter] >= 0 ? " (class " + (caseLabels[tCaseIter] + 1) + ")" : "") + ":");
+         for (rank = 0; rank < topK; rank++)
+         {
+            System.out.printf(" %d (%.3f)", topClasses[tCaseIter][rank] + 1, topScores[tCaseIter][rank]);
+         }
+         System.out.println();
+         if (caseLabels[tCaseIter] >= 0)
+         {
+            labelled++;
+            if (topClasses[tCaseIter][0] == caseLabels[tCaseIter])
+            {
+               correct++;
+            }
+         }
+      } // for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++)
+      if (labelled > 0)
+      {
+         System.out.println(correct + " of " + labelled + " labelled cases ranked their class first.");
+      }
+      System.out.println("----------------------------------------------");
+   } // reportTopK()
+
+/*
+ * Runs every test case through runOutputNeuron(double[] input, int node), keeping only the output of outputNode.
+ */
+   public static void runOutputNodeOutput()
+   {
+      nodeOutputs = new double[numTestCases];
+      for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++)
+      {
+         nodeOutputs[tCaseIter] = runOutputNeuron(testCases[tCaseIter], outputNode - 1);
+         if (firstResultNanos == 0)
+         {
+            firstResultNanos = System.nanoTime();
+         }
+      }
+   } // runOutputNodeOutput()
+
+/*
+ * Reports the output of outputNode for every test case next to the class it should have, in place of the truth table.
+ */
+   public static void reportOutputNode()
+   {
+      System.out.println("----------------------------------------------");
+      System.out.println("The network has finished running. ");
+      System.out.println("----------------------------------------------");
+      System.out.println("Output " + outputNode + " of each case.\n");
+      for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++)
+      {
+         System.out.printf("%s%s: %.3f\n", ANSI_BOLD + caseFileNames[tCaseIter] + ANSI_RESET, 
+               caseLabels[tCaseIter] >= 0 ? " (class " + (caseLabels[tCaseIter] + 1) + ")" : "", nodeOutputs[tCaseIter]);
+      }
+      System.out.println("----------------------------------------------");
+   } // reportOutputNode()
+
+/**
+ * Runs network for output by running each case individually through the inference path.
+ * Does not require target outputs, simply runs the network.
+ */
+   public static void runNetworkOutput()
+   {
+      for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++)
+      {
+         runInference(testCases[tCaseIter], calculatedOutputs[tCaseIter]);
+         if (firstResultNanos == 0)
+         {
+            firstResultNanos = System.nanoTime();
+         }
+      }
+   } // runNetworkOutput()
+
+/*
+ * Runs every test case through runInference(double[] input, double[] output) for the evaluation mode. The cases are
+ * split into batches of evaluationBatchSize that run in parallel, each on its own thread's workspace, and the class
+ * each case is given and the time its inference took are kept for reportEvaluation().
+ */
+   public static void runEvaluation()
+   {
+      int batches = (numTestCases + evaluationBatchSize - 1) / evaluationBatchSize;
+      predictedClasses = new int[numTestCases];
+      caseLatencies = new long[numTestCases];
+
+      long start = System.nanoTime();
+      IntStream.range(0, batches).parallel().forEach(batch ->
+      {
+         int first = batch * evaluationBatchSize;
+         int last = Math.min(first + evaluationBatchSize, numTestCases);
+         int best, out;
+         long caseStart;
+         for (int tCase = first; tCase < last; tCase++)
+         {
+            caseStart = System.nanoTime();
+            runInference(testCases[tCase], calculatedOutputs[tCase]);
+            caseLatencies[tCase] = System.nanoTime() - caseStart;
+            if (firstResultNanos == 0)          // any thread's first case is close enough
+            {
+               firstResultNanos = System.nanoTime();
+            }
+
+            best = 0;
+            for (out = 1; out < nLayers[outLayer]; out++)
+            {
+               if (calculatedOutputs[tCase][out] > calculatedOutputs[tCase][best])
+               {
+                  best = out;
+               }
+            }
+            predictedClasses[tCase] = best;
+         } // for (int tCase = first; tCase < last; tCase++)
+      });
+      evaluationNanos = System.nanoTime() - start;
+   } // runEvaluation()
+
+/*
+ * Reports the evaluation in place of the truth table: accuracy, the confusion matrix and the precision and recall of
+ * each class over the labelled cases, and latency percentiles over every case. Everything is also written as JSON to
+ * evaluationFileName. An empty split is a failed check, and so, with minAccuracy set, is an accuracy below it or no
+ * labelled cases to measure it on, so the run exits with status 1.
+ */
+   public static void reportEvaluation()
+   {
+      int numClasses = nLayers[outLayer];
+      int[][] confusion = new int[numClasses][numClasses];         // [actual class][predicted class]
+      int labelled = 0, correct = 0, actual, predicted, tCase;
+      long[] sorted = caseLatencies.clone();
+      Arrays.sort(sorted);
+
+      for (tCase = 0; tCase < numTestCases; tCase++)
+      {
+         if (caseLabels[tCase] >= 0)
+         {
+            confusion[caseLabels[tCase]][predictedClasses[tCase]]++;
+            labelled++;
+            if (caseLabels[tCase] == predictedClasses[tCase])
+            {
+               correct++;
+            }
+         }
+      }
+
+      System.out.println("----------------------------------------------");
+      System.out.println("The network has finished evaluating " + numTestCases + " cases. ");
+      System.out.println("----------------------------------------------");
+      if (numTestCases == 0)
+      {
+         System.out.println("There are no cases to evaluate.");
+         System.out.println("----------------------------------------------");
+         failedChecks.add("The evaluated split has no cases, so nothing was measured.");
+         return;
+      }
+      if (labelled > 0)
+      {
+         System.out.printf("Accuracy = %.4f (%d of %d labelled cases)\n\n", (double) correct / labelled, correct, labelled);
+         System.out.print(ANSI_BOLD + "Actual \\ Predicted |");
+         for (predicted = 0; predicted < numClasses; predicted++)
+         {
+            System.out.printf(" %5d |", predicted + 1);
+         }
+         System.out.println(" Precision | Recall" + ANSI_RESET);
+         for (actual = 0; actual < numClasses; actual++)
+         {
+            System.out.printf("%18d |", actual + 1);
+            for (predicted = 0; predicted < numClasses; predicted++)
+            {
+               System.out.printf(" %5d |", confusion[actual][predicted]);
+            }
+            System.out.printf(" %9.4f | %.4f\n", precision(confusion, actual), recall(confusion, actual));
+         }
+         System.out.println();
+      } // if (labelled > 0)
+      else
+      {
+         System.out.println("None of the cases are labelled, so only latency is reported.");
+      }
+      System.out.printf("Latency per case: mean %.1fus, p50 %.1fus, p90 %.1fus, p99 %.1fus, max %.1fus\n", 
+            Arrays.stream(sorted).average().orElse(0.0) / 1e3, percentile(sorted, 0.5) / 1e3, 
+            percentile(sorted, 0.9) / 1e3, percentile(sorted, 0.99) / 1e3, sorted[sorted.length - 1] / 1e3);
+      System.out.printf("Throughput: %.1f cases per second\n", numTestCases / (evaluationNanos / 1e9));
+
+      writeEvaluation(confusion, sorted, labelled, correct);
+      System.out.println("----------------------------------------------");
+
+      if (minAccuracy > 0.0 && labelled == 0)
+      {
+         failedChecks.add("minAccuracy is " + minAccuracy + ", but none of the evaluated cases are labelled.");
+      }
+      else if (minAccuracy > 0.0 && (double) correct / labelled < minAccuracy)
+      {
+         failedChecks.add("The evaluation accuracy " + (double) correct / labelled + " is below minAccuracy " 
+               + minAccuracy + ".");
+      }
+   } // reportEvaluation()
+
+/*
+ * Finds the precision of one class: the share of the cases predicted as the class that really are it.
+ * 
+ * @param confusion confusion matrix, [actual class][predicted class]
+ * @param predicted the class
+ * @return double the precision, 0 if nothing was predicted as the class
+ */
+   public static double precision(int[][] confusion, int predicted)
+   {
+      int total = 0;
+      for (int actual = 0; actual < confusion.length; actual++)
+      {
+         total += confusion[actual][predicted];
+      }
+      return total == 0 ? 0.0 : (double) confusion[predicted][predicted] / total;
+   } // precision(int[][] confusion, int predicted)
+
+/*
+ * Finds the recall of one class: the share of the cases of the class that were predicted as it.
+ * 
+ * @param confusion confusion matrix, [actual class][predicted class]
+ * @param actual    the class
+ * @return double the recall, 0 if no case has the class
+ */
+   public static double recall(int[][] confusion, int actual)
+   {
+      int total = 0;
+      for (int predicted = 0; predicted < confusion.length; predicted++)
+      {
+         total += confusion[actual][predicted];
+      }
+      return total == 0 ? 0.0 : (double) confusion[actual][actual] / total;
+   } // recall(int[][] confusion, int actual)
+
+/*
+ * Finds a percentile of a sorted list of latencies by the nearest rank.
+ * 
+ * @param sorted   latencies in nanoseconds, in increasing order
+ * @param fraction percentile wanted, between 0 and 1
+ * @return long the latency at that percentile, or 0 if there are none
+ */
+   public static long percentile(long[] sorted, double fraction)
+   {
+      if (sorted.length == 0)
+      {
+         return 0;
+      }
+      int rank = (int) Math.ceil(fraction * sorted.length);
+      return sorted[Math.max(rank - 1, 0)];
+   } // percentile(long[] sorted, double fraction)
+
+/*
+ * Writes the evaluation to evaluationFileName as a single JSON object: accuracy, the confusion matrix with one row
+ * per actual class, per-class precision, recall and support, latency statistics in microseconds, throughput, and
+ * the misclassified cases.
+ * 
+ * @param confusion confusion matrix, [actual class][predicted class]
+ * @param sorted    latencies of every case in nanoseconds, in increasing order
+ * @param labelled  number of labelled cases
+ * @param correct   number of labelled cases given their own class
+ */
+   public static void writeEvaluation(int[][] confusion, long[] sorted, int labelled, int correct)
+   {
+      int numClasses = confusion.length;
+      int actual, predicted, tCase;
+      boolean first = true;
+      try (PrintWriter writer = new PrintWriter(new FileWriter(evaluationFileName)))
+      {
+         writer.println("{");
+         writer.printf(Locale.ROOT, "  \"netConfig\": %s,\n", jsonString(String.join("-", netConfigStr)));
+         writer.printf(Locale.ROOT, "  \"cases\": %d,\n  \"labelled\": %d,\n  \"correct\": %d,\n", numTestCases, labelled, 
+               correct);
+         writer.printf(Locale.ROOT, "  \"accuracy\": %.6f,\n", labelled == 0 ? 0.0 : (double) correct / labelled);
+
+         writer.print("  \"confusionMatrix\": [");
+         for (actual = 0; actual < numClasses; actual++)
+         {
+            writer.print(actual == 0 ? "[" : ", [");
+            for (predicted = 0; predicted < numClasses; predicted++)
+            {
+               writer.print((predicted == 0 ? "" : ", ") + confusion[actual][predicted]);
+            }
+            writer.print("]");
+         }
+         writer.println("],");
+
+         writer.println("  \"classes\": [");
+         for (actual = 0; actual < numClasses; actual++)
+         {
+            writer.printf(Locale.ROOT, "    {\"class\": %d, \"precision\": %.6f, \"recall\": %.6f, \"support\": %d}%s\n", 
+                  actual + 1, precision(confusion, actual), recall(confusion, actual), 
+                  Arrays.stream(confusion[actual]).sum(), actual == numClasses - 1 ? "" : ",");
+         }
+         writer.println("  ],");
+
+         writer.printf(Locale.ROOT, "  \"latencyMicros\": {\"mean\": %.3f, \"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, "
+               + "\"max\": %.3f},\n", Arrays.stream(sorted).average().orElse(0.0) / 1e3, percentile(sorted, 0.5) / 1e3, 
+               percentile(sorted, 0.9) / 1e3, percentile(sorted, 0.99) / 1e3, percentile(sorted, 1.0) / 1e3);
+         writer.printf(Locale.ROOT, "  \"casesPerSecond\": %.3f,\n", numTestCases / (evaluationNanos / 1e9));
+
+         writer.print("  \"misclassified\": [");
+         for (tCase = 0; tCase < numTestCases; tCase++)
+         {
+            if (caseLabels[tCase] >= 0 && caseLabels[tCase] != predictedClasses[tCase])
+            {
+               writer.printf(Locale.ROOT, "%s\n    {\"file\": %s, \"actual\": %d, \"predicted\": %d}", first ? "" : ",",
+                     jsonString(caseFileNames[tCase]), caseLabels[tCase] + 1, predictedClasses[tCase] + 1);
+               first = false;
+            }
+         }
+         writer.println(first ? "]" : "\n  ]");
+         writer.println("}");
+         System.out.println("Evaluation results have been written to " + evaluationFileName);
+      } // try (PrintWriter writer = new PrintWriter(new FileWriter(evaluationFileName)))
+      catch (IOException e) 
+      {
+         System.err.println("Error writing to file: " + e.getMessage());
+      }
+   } // writeEvaluation(int[][] confusion, long[] sorted, int labelled, int correct)
+
+/*
+ * Quotes a string for JSON, escaping backslashes, quotes and control characters.
+ * 
+ * @param text the string
+ * @return String the quoted string
+ */
+   public static String jsonString(String text)
+   {
+      StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+      for (char c : text.toCharArray())
+      {
+         if (c == '"' || c == '\\')
+         {
+            quoted.append('\\').append(c);
+         }
+         else if (c == '\n')
+         {
+            quoted.append("\\n");
+         }
+         else if (c < ' ')
+         {
+            quoted.append(String.format("\\u%04x", (int) c));
+         }
+         else
+         {
+            quoted.append(c);
+         }
+      }
+      return quoted.append('"').toString();
+   } // jsonString(String text)
+
+/*
+ * Checks that the inference path is allocation free. The test cases are run through runInference() until the JIT
+ * has warmed up, then the bytes allocated by this thread over a second round of calls are read from the
+ * ThreadMXBean allocation counter and reported per call. Any allocation is a failed check, so the run exits with
+ * status 1.
+ */
+   public static void measureInferenceAllocation()
+   {
+      int warmUpRounds = 200;
+      int measuredRounds = 50;
+      int round;
+      long before, after;
+      long threadId = Thread.currentThread().getId();
+      double bytesPerCall;
+      com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      double[] output = new double[nLayers[outLayer]];
+
+      for (round = 0; round < warmUpRounds; round++)
+      {
+         for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++)
+         {
+            runInference(testCases[tCaseIter], output);
+         }
+      }
+
+      before = threadBean.getThreadAllocatedBytes(threadId);
+      for (round = 0; round < measuredRounds; round++)
+      {
+         for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++)
+         {
+            runInference(testCases[tCaseIter], output);
+         }
+      }
+      after = threadBean.getThreadAllocatedBytes(threadId);
+
+      bytesPerCall = (double) (after - before) / (double) (measuredRounds * numTestCases);
+      System.out.println("Inference allocated " + (after - before) + " bytes over " + (measuredRounds * numTestCases)
+            + " calls (" + bytesPerCall + " bytes per call).");
+      if (bytesPerCall >= 1.0)
+      {
+         failedChecks.add("The inference path allocated " + bytesPerCall + " bytes per call after warm-up.");
+      }
+   } // measureInferenceAllocation()
+
+/*
+ * Prints how long the run took from the JVM starting to the first case being classified, split into the JVM's own
+ * startup and class loading before main and the time main took from there. This is the figure a class data sharing
+ * archive or a native image improves for short inference jobs.
+ */
+   public static void reportStartup()
+   {
+      long uptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+      long now = System.nanoTime();
+      long mainMillis = uptimeMillis - (now - startingTime) / 1000000;
+
+      if (firstResultNanos == 0)
+      {
+         System.out.println("No case was classified. The JVM took " + mainMillis + "ms to reach main.");
+         return;
+      }
+      long firstMillis = uptimeMillis - (now - firstResultNanos) / 1000000;
+      System.out.println("Startup to first result: " + firstMillis + "ms (JVM start to main " + mainMillis 
+            + "ms, main to first result " + (firstMillis - mainMillis) + "ms).");
+   } // reportStartup()
+
+/*
+ * Finds error across test cases by finding the sum of all individual errors for the test cases: squared error for a
+ * sigmoid output layer, or cross-entropy for a softmax.
+ */
+   public static void calculateError()
+   {
+      if (softmaxHead)
+      {
+         totalError += crossEntropy(targetOutput[tCaseIter], activations[outLayer], nLayers[outLayer]);
+         return;
+      }
+      double diff;
+      for (i = 0; i < nLayers[outLayer]; i++)
+      {
+         diff = targetOutput[tCaseIter][i] - activations[outLayer][i];
+         totalError += diff * diff * 0.5;
+      }
+   } // calculateError()
+
+/*
+ * Reports results of training or running, by printing the calculated and expected values for the test cases.
+ * If the model just finished training, the method also reports the reason why. The whole report is built as one
+ * string and handed to the log writer in a single record, and the truth table is left out when logging is quiet.
+ */
+   public static void reportResults()
+   {
+      StringBuilder report = new StringBuilder();
+      if (totalIters >= maxIters)
+      {
+         reasonToStopTraining = "The maximum number of iterations, " + maxIters + ", has been reached. ";
+      }
+
+      if (averageError <= errorThreshold)
+      {
+         reasonToStopTraining += "The program achieved the error cutoff in " + totalIters + " iterations. ";
+      }
+
+      reasonToStopTraining += "Thus, the program ended.";
+
+      report.append("----------------------------------------------\n");
+      if (willTrain)
+      {
+         report.append("The network has stopped training. \n");
+         report.append(reasonToStopTraining).append('\n');
+         report.append("The total number of iterations is " + totalIters + ".\n");
+         report.append("Average error of the model is " + averageError + " while the error threshold was " + errorThreshold)
+               .append('\n');
+      }
+      else
+      {
+         report.append("The network has finished running. \n");
+      }
+
+      report.append("----------------------------------------------\n");
+
+/*
+ * Builds truth tables to compare expected and calculated values.
+ */     
+      if (!quietLogging && numTestCases > 0)       // a distributed coordinator holds no cases
+      {
+         report.append("Truth Table with expected and calculated  values.\n");
+         report.append("Inputs are labeled I, Target/Expected Outputs are marked T, and Calculated Outputs are marked F.\n\n");
+
+         for (i = 0; i < nLayers[outLayer]; i++)
+         {
+            report.append(ANSI_BOLD + "  T#" + (i+1)+ "  |" + ANSI_RESET);     // ANSI_BOLD bolds the text for headers
+         }
+
+         for (i = 0; i < nLayers[outLayer]; i++)
+         {
+            report.append(ANSI_BOLD + "  F#" + (i+1)+  "  |" + ANSI_RESET);
+         }
+
+         for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++)
+         {
+            report.append('\n');
+            for (i = 0; i < nLayers[outLayer]; i++) 
+            {
+               report.append(String.format(" %.3f", targetOutput[tCaseIter][i])).append(" |");
+            }
+
+            for (i = 0; i < nLayers[outLayer]; i++)
+            {
+               report.append(String.format(" %.3f", calculatedOutputs[tCaseIter][i])).append(" |");
+            }
+         } // for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++)
+         report.append("\n----------------------------------------------\n");
+      } // if (!quietLogging)
+
+      logReport(report.toString());
+      flushLog();
+   }  // reportResults()
+
+/*
+ * Generates a random weight as a baseline for training, drawn from the seeded generator so runs can be repeated.
+ * 
+ * @return double randomly generated weight value, within the bounds of the min and max thresholds
+ */
+   public static double generateRandWeight()
+   {
+      return generateRandWeight(random);
+   }  // generateRandWeight()
+
+/*
+ * Generates a random weight within the bounds of the min and max thresholds from the given generator.
+ * 
+ * @param generator the generator to draw from
+ * @return double randomly generated weight value
+ */
+   public static double generateRandWeight(SplittableRandom generator)
+   {
+      return generator.nextDouble() * (randomMaxThreshold - randomMinThreshold) + randomMinThreshold;
+   }  // generateRandWeight(SplittableRandom generator)
+
+/*
+ * Saves weights into a .txt file.
+ */
+   public static void saveWeights()
+   {
+      try (PrintWriter writer = new PrintWriter(new FileWriter(weightsFileName))) 
+      {
+         for (alpha = 1; alpha < numLayers; alpha++)
+         {
+            for (gamma = 0; gamma < weightRows[alpha]; gamma++)
+            {
+               for (beta = 0; beta < weightCols[alpha]; beta++)
+               {
+                  writer.print(weights[alpha][gamma][beta] + " ");
+               }
+               writer.println();
+            }
+            writer.println();
+         } // for (alpha = 1; alpha < numLayers; alpha++)
+
+         System.out.println("Array data has been written to " + weightsFileName);
+
+      } // try (PrintWriter writer = new PrintWriter(new FileWriter(weightsFileName))) 
+      catch (IOException e) 
+      {
+         System.err.println("Error writing to file: " + e.getMessage());
+      }
+   } // saveWeights()
+   
+/*
+ * Reads in and loads weights from a .txt file.
+ */
+   public static void loadWeights() 
+   {
+      try 
+      {
+         BufferedReader reader = new BufferedReader(new FileReader(weightsFileName));
+         String[] line;
+         for (alpha = 1; alpha < numLayers; alpha++)
+         {
+            for (gamma = 0; gamma < weightRows[alpha]; gamma++)
+            {
+               line = reader.readLine().trim().split("\\s+");
+               for (beta = 0; beta < weightCols[alpha]; beta++) 
+               {
+                  weights[alpha][gamma][beta] = Double.parseDouble(line[beta]);
+               }
+            }
+            reader.readLine();
+         } // for (alpha = 1; alpha < numLayers; alpha++)
+
+         System.out.println("Array data has been loaded from " + weightsFileName);
+         reader.close();
+
+      } // try
+      catch (IOException e) 
+      {
+         System.err.println("Error reading from file: " + e.getMessage());
+      }
+   } // loadWeights()
+
+/*
+ * Gives the size of the binary checkpoint header of the configured network.
+ * 
+ * @return int number of bytes before the first weight
+ */
+   public static int weightsHeaderBytes()
+   {
+      return weightsHeaderBytes(numLayers);
+   } // weightsHeaderBytes()
+
+/*
+ * Gives the size of the binary checkpoint header: the magic number, the layer count and every layer size,
+ * rounded up so that the weights that follow are aligned to 8 bytes.
+ * 
+ * @param layerCount number of layers in the network, including the input layer
+ * @return int number of bytes before the first weight
+ */
+   public static int weightsHeaderBytes(int layerCount)
+   {
+      int bytes = Integer.BYTES * (2 + layerCount);
+      return (bytes + Double.BYTES - 1) / Double.BYTES * Double.BYTES;
+   } // weightsHeaderBytes(int layerCount)
+
+/*
+ * Saves weights into a little-endian binary checkpoint. After the header, the weights are written as raw doubles in
+ * the same [alpha][gamma][beta] order as saveWeights(), so the file can be loaded without parsing any text.
+ */
+   public static void saveWeightsBinary()
+   {
+      ByteBuffer header = ByteBuffer.allocate(weightsHeaderBytes()).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(WEIGHTS_MAGIC);
+      header.putInt(numLayers);
+      for (alpha = inLayer; alpha < numLayers; alpha++)
+      {
+         header.putInt(nLayers[alpha]);
+      }
+      header.position(weightsHeaderBytes());
+      header.flip();
+
+      try (FileChannel channel = FileChannel.open(Paths.get(binaryWeightsFileName), StandardOpenOption.CREATE, 
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+      {
+         while (header.hasRemaining())
+         {
+            channel.write(header);
+         }
+         writeWeightRows(channel, weights, weightRows, weightCols);
+         System.out.println("Binary weights have been written to " + binaryWeightsFileName);
+      }
+      catch (IOException e) 
+      {
+         System.err.println("Error writing to file: " + e.getMessage());
+      }
+   } // saveWeightsBinary()
+
+/*
+ * Writes weights to a binary checkpoint at the channel's position as raw little-endian doubles in [alpha][gamma][beta]
+ * order, going through a buffer of CHECKPOINT_CHUNK_BYTES.
+ * 
+ * @param channel checkpoint being written, positioned after its header
+ * @param w       weights to write, indexed [alpha][gamma][beta]
+ * @param rows    rows of each layer's weight matrix
+ * @param cols    columns of each layer's weight matrix
+ * @throws IOException if the checkpoint cannot be written
+ */
+   public static void writeWeightRows(FileChannel channel, double[][][] w, int[] rows, int[] cols) throws IOException
+   {
+      ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      int layer, row, col;
+      for (layer = 1; layer < rows.length; layer++)
+      {
+         for (row = 0; row < rows[layer]; row++)
+         {
+            for (col = 0; col < cols[layer]; col++)
+            {
+               if (!buffer.hasRemaining())
+               {
+                  buffer.flip();
+                  while (buffer.hasRemaining())
+                  {
+                     channel.write(buffer);
+                  }
+                  buffer.clear();
+               }
+               buffer.putDouble(w[layer][row][col]);
+            }
+         } // for (row = 0; row < rows[layer]; row++)
+      } // for (layer = 1; layer < rows.length; layer++)
+
+      buffer.flip();
+      while (buffer.hasRemaining())
+      {
+         channel.write(buffer);
+      }
+   } // writeWeightRows(FileChannel channel, double[][][] w, int[] rows, int[] cols)
+
+/*
+ * Reads the weights of a binary checkpoint from the channel's position into weight arrays, going through a buffer of
+ * CHECKPOINT_CHUNK_BYTES. The caller has already checked that the file holds exactly this many weights.
+ * 
+ * @param channel checkpoint being read, positioned after its header
+ * @param w       weight arrays to fill, indexed [alpha][gamma][beta]
+ * @param rows    rows of each layer's weight matrix
+ * @param cols    columns of each layer's weight matrix
+ * @throws IOException if the checkpoint cannot be read
+ */
+   public static void readWeightRows(FileChannel channel, double[][][] w, int[] rows, int[] cols) throws IOException
+   {
+      ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      int layer, row, col;
+      buffer.flip();
+      for (layer = 1; layer < rows.length; layer++)
+      {
+         for (row = 0; row < rows[layer]; row++)
+         {
+            for (col = 0; col < cols[layer]; col++)
+            {
+               if (!buffer.hasRemaining())
+               {
+                  buffer.clear();
+                  while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+                  buffer.flip();
+               }
+               w[layer][row][col] = buffer.getDouble();
+            }
+         } // for (row = 0; row < rows[layer]; row++)
+      } // for (layer = 1; layer < rows.length; layer++)
+   } // readWeightRows(FileChannel channel, double[][][] w, int[] rows, int[] cols)
+
+/*
+ * Reads the header of the binary checkpoint binaryWeightsFileName and checks that its layer sizes match the
+ * configured network.
+ * 
+ * @param channel channel positioned at the start of the checkpoint
+ * @return ByteBuffer the header that was read
+ * @throws IOException if the file cannot be read or does not match nLayers
+ */
+   public static ByteBuffer readWeightsHeader(FileChannel channel) throws IOException
+   {
+      return readWeightsHeader(channel, binaryWeightsFileName, nLayers);
+   } // readWeightsHeader(FileChannel channel)
+
+/*
+ * Reads the header of a binary checkpoint and checks that its layer sizes match the given network.
+ * 
+ * @param channel  channel positioned at the start of the checkpoint
+ * @param fileName name of the checkpoint, for error messages
+ * @param layers   size of every layer of the network, including the input layer
+ * @return ByteBuffer the header that was read
+ * @throws IOException if the file cannot be read or does not match the layers
+ */
+   public static ByteBuffer readWeightsHeader(FileChannel channel, String fileName, int[] layers) throws IOException
+   {
+      ByteBuffer header = ByteBuffer.allocate(weightsHeaderBytes(layers.length)).order(ByteOrder.LITTLE_ENDIAN);
+      while (header.hasRemaining())
+      {
+         if (channel.read(header) < 0)
+         {
+            throw new IOException(fileName + " is too short to be a weights checkpoint.");
+         }
+      }
+      header.flip();
+
+      if (header.getInt() != WEIGHTS_MAGIC || header.getInt() != layers.length)
+      {
+         throw new IOException(fileName + " is not a weights checkpoint for this network.");
+      }
+      for (int layer = 0; layer < layers.length; layer++)
+      {
+         if (header.getInt() != layers[layer])
+         {
+            throw new IOException(fileName + " has a different size for layer " + layer + ".");
+         }
+      }
+      return header;
+   } // readWeightsHeader(FileChannel channel, String fileName, int[] layers)
+
+/*
+ * Reads in and loads weights from a binary checkpoint into the weights array, after checking that its header and
+ * size match the network.
+ */
+   public static void loadWeightsBinary()
+   {
+      long weightCount = 0;
+      for (alpha = 1; alpha < numLayers; alpha++)
+      {
+         weightCount += (long) weightRows[alpha] * weightCols[alpha];
+      }
+
+      try (FileChannel channel = FileChannel.open(Paths.get(binaryWeightsFileName), StandardOpenOption.READ))
+      {
+         readWeightsHeader(channel);
+         if (channel.size() != weightsHeaderBytes() + weightCount * Double.BYTES)
+         {
+            throw new IOException(binaryWeightsFileName + " does not hold the expected number of weights.");
+         }
+         readWeightRows(channel, weights, weightRows, weightCols);
+         System.out.println("Array data has been loaded from " + binaryWeightsFileName);
+      } // try
+      catch (IOException e) 
+      {
+         System.err.println("Error reading from file: " + e.getMessage());
+      }
+   } // loadWeightsBinary()
+
+/*
+ * Reads a binary checkpoint straight into native memory without creating any weight arrays on the heap, so the size of 
+ * the model does not add to the work the garbage collector does. If mapWeights is set, the checkpoint is instead
+ * memory-mapped read-only: nothing is copied, and every process mapping the same file shares its page-cache pages.
+ * Each layer gets its own buffer, so the model as a whole can be larger than one buffer can address; only a layer
+ * with more than Integer.MAX_VALUE bytes of weights is refused. If the checkpoint is missing, does not match the
+ * network or has such a layer, the program exits, since there are no other weights.
+ */
+   public static void loadWeightsOffHeap()
+   {
+      long weightCount = 0;
+      long position = weightsHeaderBytes();
+      long layerBytes;
+      for (alpha = 1; alpha < numLayers; alpha++)
+      {
+         weightCount += (long) nLayers[alpha - 1] * nLayers[alpha];
+      }
+
+      try (FileChannel channel = FileChannel.open(Paths.get(binaryWeightsFileName), StandardOpenOption.READ))
+      {
+         readWeightsHeader(channel);
+         if (channel.size() != weightsHeaderBytes() + weightCount * Double.BYTES)
+         {
+            throw new IOException(binaryWeightsFileName + " does not hold the expected number of weights.");
+         }
+
+         offHeapWeights = new DoubleBuffer[numLayers];
+         for (alpha = 1; alpha < numLayers; alpha++)
+         {
+            layerBytes = (long) nLayers[alpha - 1] * nLayers[alpha] * Double.BYTES;
+            if (layerBytes > Integer.MAX_VALUE)
+            {
+               throw new IOException("layer " + alpha + " has " + layerBytes + " bytes of weights, more than the " 
+                     + Integer.MAX_VALUE + " one off-heap buffer can hold.");
+            }
+
+            ByteBuffer buffer;
+            if (mapWeights)
+            {
+               buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, layerBytes);
+            }
+            else
+            {
+               buffer = ByteBuffer.allocateDirect((int) layerBytes);
+               while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0);
+               buffer.flip();
+            }
+            offHeapWeights[alpha] = buffer.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            position += layerBytes;
+         } // for (alpha = 1; alpha < numLayers; alpha++)
+
+         System.out.println("Array data has been " + (mapWeights ? "mapped" : "loaded off-heap") + " from " 
+               + binaryWeightsFileName);
+      } // try
+      catch (IOException e)       // inference has no weights to fall back on, so it cannot go on
+      {
+         System.err.println("Error reading the off-heap weights from " + binaryWeightsFileName + ": " + e);
+         System.exit(1);
+      }
+   } // loadWeightsOffHeap()
+
+/*
+ * Same computation as forwardPass(double[][][] w, double[][] layerActivations), but the weights are read directly from
+ * offHeapWeights with gemvOffHeap(double[] in, int inSize, DoubleBuffer w, double[] out, int outSize), so
+ * the outputs match the on-heap pass exactly.
+ * 
+ * @param layerActivations activation buffers for every layer, with the input layer already filled in
+ */
+   public static void forwardPassOffHeap(double[][] layerActivations)
+   {
+      int layer, out;
+      for (layer = 1; layer < numLayers; layer++)
+      {
+         gemvOffHeap(layerActivations[layer - 1], nLayers[layer - 1], offHeapWeights[layer], layerActivations[layer], 
+               nLayers[layer]);
+         if (layer < outLayer)
+         {
+            for (out = 0; out < nLayers[layer]; out++)
+            {
+               layerActivations[layer][out] = activationFunction(layerActivations[layer][out]);
+            }
+         }
+      } // for (layer = 1; layer < numLayers; layer++)
+      applyOutputHead(layerActivations[outLayer], layerActivations[outLayer], nLayers[outLayer]);
+   } // forwardPassOffHeap(double[][] layerActivations)
+
+/*
+ * The blocked kernel of gemv(double[] in, int inSize, double[][] w, double[] out, int outSize) over weights held in a
+ * DoubleBuffer, where row gamma of the layer starts at gamma * outSize. Rows are read in order, four at a time,
+ * blocks of kernelBlockSize columns stay in cache, and all-zero groups of inputs are skipped.
+ * 
+ * @param in      input activations
+ * @param inSize  number of inputs used
+ * @param w       weights of the layer
+ * @param out     receives the weighted sums
+ * @param outSize number of outputs used
+ */
+   public static void gemvOffHeap(double[] in, int inSize, DoubleBuffer w, double[] out, int outSize)
+   {
+      int blockStart, blockEnd, row, col, r0, r1, r2, r3;
+      double a0, a1, a2, a3;
+
+      for (blockStart = 0; blockStart < outSize; blockStart += kernelBlockSize)
+      {
+         blockEnd = Math.min(blockStart + kernelBlockSize, outSize);
+         for (col = blockStart; col < blockEnd; col++)
+         {
+            out[col] = 0.0;
+         }
+
+         for (row = 0; row + 3 < inSize; row += 4)
+         {
+            a0 = in[row];
+            a1 = in[row + 1];
+            a2 = in[row + 2];
+            a3 = in[row + 3];
+            if (a0 != 0.0 || a1 != 0.0 || a2 != 0.0 || a3 != 0.0)
+            {
+               r0 = row * outSize;
+               r1 = r0 + outSize;
+               r2 = r1 + outSize;
+               r3 = r2 + outSize;
+               for (col = blockStart; col < blockEnd; col++)
+               {
+                  out[col] += a0 * w.get(r0 + col) + a1 * w.get(r1 + col) + a2 * w.get(r2 + col) + a3 * w.get(r3 + col);
+               }
+            }
+         } // for (row = 0; row + 3 < inSize; row += 4)
+
+         for (; row < inSize; row++)
+         {
+            a0 = in[row];
+            r0 = row * outSize;
+            for (col = blockStart; col < blockEnd; col++)
+            {
+               out[col] += a0 * w.get(r0 + col);
+            }
+         }
+      } // for (blockStart = 0; blockStart < outSize; blockStart += kernelBlockSize)
+   } // gemvOffHeap(double[] in, int inSize, DoubleBuffer w, double[] out, int outSize)
+
+/*
+ * Reads a comma separated list of numbers for one swept parameter. Entries that are not numbers are recorded in
+ * configErrors and read as 0.
+ * 
+ * @param key        config key holding the list
+ * @param defaultVal list to use if the key is missing
+ * @return double[] the listed values
+ */
+   public static double[] parseSweepList(String key, String defaultVal)
+   {
+      String[] parts = readString(key, defaultVal).split(",");
+      double[] values = new double[parts.length];
+      for (int index = 0; index < parts.length; index++)
+      {
+         try
+         {
+            values[index] = Double.parseDouble(parts[index].trim());
+         }
+         catch (NumberFormatException e)
+         {
+            configErrors.add(key + " must list numbers, not " + parts[index].trim() + ".");
+         }
+      } // for (int index = 0; index < parts.length; index++)
+      return values;
+   } // parseSweepList(String key, String defaultVal)
+
+/*
+ * Reads the comma separated layer sizes of the swept networks. Every network must be made of positive whole numbers
+ * and have the same inputs and outputs as netConfig, since all trials train on the same cases; anything else is
+ * recorded in configErrors. Convolution and pooling layers are left for the check that turns sweeps off.
+ * 
+ * @param key        config key holding the list
+ * @param defaultVal list to use if the key is missing
+ * @return String[] the listed networks
+ */
+   public static String[] parseSweepNetConfigs(String key, String defaultVal)
+   {
+      String[] configs = readString(key, defaultVal).split(",");
+      String[] sizes;
+      int layer, size;
+
+      for (String config : configs)
+      {
+         sizes = config.trim().split("-");
+         if (sizes.length < 2)
+         {
+            configErrors.add(key + " needs at least an input and an output layer in " + config.trim() + ".");
+            continue;
+         }
+         for (layer = 0; layer < sizes.length; layer++)
+         {
+            if (sizes[layer].trim().matches("[cma].*"))
+            {
+               continue;
+            }
+            try
+            {
+               size = Integer.parseInt(sizes[layer].trim());
+            }
+            catch (NumberFormatException e)
+            {
+               configErrors.add(key + " has a layer size that is not a number: " + sizes[layer].trim());
+               continue;
+            }
+            if (size <= 0)
+            {
+               configErrors.add(key + " layer " + layer + " of " + config.trim() + " must have at least one node.");
+            }
+            else if ((layer == 0 && size != nLayers[0]) 
+                  || (layer == sizes.length - 1 && numLayers > 0 && size != nLayers[numLayers - 1]))
+            {
+               configErrors.add(key + " network " + config.trim() + " must keep the inputs and outputs of netConfig.");
+            }
+         } // for (layer = 0; layer < sizes.length; layer++)
+      } // for (String config : configs)
+      return configs;
+   } // parseSweepNetConfigs(String key, String defaultVal)
+
+/*
+ * Builds a trial with its own arrays and randomly generated weights. The input and output layers must match the
+ * loaded test cases.
+ * 
+ * @param netConfig           layer sizes separated by dashes
+ * @param trialLambda         learning factor
+ * @param randomRange         bound for the random starting weights
+ * @param trialErrorThreshold error at which the trial stops training
+ * @param trialRandom         generator for this trial's starting weights
+ * @return Trial the new trial
+ */
+   public static Trial createTrial(String netConfig, double trialLambda, double randomRange, double trialErrorThreshold,
+                                   SplittableRandom trialRandom)
+   {
+      Trial trial = new Trial();
+      String[] sizes = netConfig.trim().split("-");
+      int layer, row, col, widest = 0;
+
+      trial.netConfig = netConfig.trim();
+      trial.layers = new int[sizes.length];
+      for (layer = 0; layer < sizes.length; layer++)
+      {
+         trial.layers[layer] = Integer.parseInt(sizes[layer]);
+         widest = Math.max(widest, trial.layers[layer]);
+      }
+      if (trial.layers[0] != nLayers[inLayer] || trial.layers[sizes.length - 1] != nLayers[outLayer])
+      {
+         throw new IllegalArgumentException("Sweep netConfig " + netConfig + " does not match the " + nLayers[inLayer] 
+               + " inputs and " + nLayers[outLayer] + " outputs of the test cases.");
+      }
+
+      trial.lambda = trialLambda;
+      trial.randomRange = randomRange;
+      trial.errorThreshold = trialErrorThreshold;
+      trial.activations = new double[sizes.length][widest];
+      trial.theta = new double[sizes.length][widest];
+      trial.psi = new double[sizes.length][widest];
+      trial.weights = new double[sizes.length][][];
+      trial.weights[0] = new double[0][0];
+      for (layer = 1; layer < sizes.length; layer++)
+      {
+         trial.weights[layer] = new double[trial.layers[layer - 1]][trial.layers[layer]];
+         for (row = 0; row < trial.layers[layer - 1]; row++)
+         {
+            for (col = 0; col < trial.layers[layer]; col++)
+            {
+               trial.weights[layer][row][col] = (trialRandom.nextDouble() * 2.0 - 1.0) * randomRange;
+            }
+         }
+      } // for (layer = 1; layer < sizes.length; layer++)
+      return trial;
+   } // createTrial(String netConfig, double trialLambda, double randomRange, double trialErrorThreshold, ...)
+
+/*
+ * Builds the trials for the sweep from the config. Without sweepRandomTrials, every combination of sweepNetConfigs,
+ * sweepLambdas, sweepRandomRanges and sweepErrorThresholds is used. Otherwise that many trials are drawn at random,
+ * with lambda log-uniform and the weight range uniform between the smallest and largest listed values. Trials are
+ * created in a fixed order and each one is given its own split of the seeded generator, so the same seed gives the
+ * same results however the trials are scheduled.
+ * 
+ * @return List<Trial> the trials to train
+ */
+   public static List<Trial> createSweepTrials()
+   {
+      String[] netConfigs = sweepNetConfigs;
+      double[] lambdas = sweepLambdas;
+      double[] ranges = sweepRandomRanges;
+      double[] thresholds = sweepErrorThresholds;
+      List<Trial> trials = new ArrayList<>();
+      double minLambda, maxLambda, minRange, maxRange, trialLambda;
+
+      if (sweepRandomTrials > 0)
+      {
+         minLambda = Double.MAX_VALUE;
+         maxLambda = 0.0;
+         for (double l : lambdas)
+         {
+            minLambda = Math.min(minLambda, l);
+            maxLambda = Math.max(maxLambda, l);
+         }
+         minRange = Double.MAX_VALUE;
+         maxRange = 0.0;
+         for (double r : ranges)
+         {
+            minRange = Math.min(minRange, r);
+            maxRange = Math.max(maxRange, r);
+         }
+
+         for (int trial = 0; trial < sweepRandomTrials; trial++)
+         {
+            trialLambda = minLambda == maxLambda ? minLambda 
+                  : Math.exp(random.nextDouble(Math.log(minLambda), Math.log(maxLambda)));
+            trials.add(createTrial(netConfigs[random.nextInt(netConfigs.length)], trialLambda, 
+                  minRange == maxRange ? minRange : random.nextDouble(minRange, maxRange), 
+                  thresholds[random.nextInt(thresholds.length)], random.split()));
+         }
+      } // if (sweepRandomTrials > 0)
+      else
+      {
+         for (String netConfig : netConfigs)
+         {
+            for (double l : lambdas)
+            {
+               for (double r : ranges)
+               {
+                  for (double t : thresholds)
+                  {
+                     trials.add(createTrial(netConfig, l, r, t, random.split()));
+                  }
+               }
+            }
+         } // for (String netConfig : netConfigs)
+      } // if (sweepRandomTrials > 0)...else
+      return trials;
+   } // createSweepTrials()
+
 /*
- * Allocates space for test case, activations, output, target output, and weight arrays.
- * If the model is currently training, also allocates memory for the weight optimization arrays.
+ * Runs one backpropogation step for a single case on the given weights, using only the given working arrays. 
+ * This is the same per-case step as trainSingleCase(), but it shares no state with the rest of the class, so several
+ * networks, or several threads on one network, can train at once.
+ * 
+ * @param w           weights to update, indexed [alpha][gamma][beta]
+ * @param layers      size of every layer
+ * @param stepLambda  learning factor
+ * @param act         activation buffers for every layer
+ * @param th          theta buffers for every layer
+ * @param ps          psi buffers for every layer
+ * @param input       input activations of the case
+ * @param target      target outputs of the case
+ * @return double the error of the case, measured in its forward pass
  */
-   public static void allocateArrayMemory()
+   public static double backpropCase(double[][][] w, int[] layers, double stepLambda, double[][] act, double[][] th, 
+                                     double[][] ps, double[] input, double[] target)
    {
-      testCases = new double[numTestCases][nLayers[inLayer]];
-      targetOutput = new double[numTestCases][nLayers[outLayer]];
-      calculatedOutputs = new double[numTestCases][nLayers[outLayer]];
-      
-      maxLayerSize = maxArrayDim();
-      activations = new double[numLayers][maxLayerSize];
-      weights = new double[numLayers][maxLayerSize][secondMaxArrayDim()];
-      
-      if (willTrain)
+      int last = layers.length - 1;
+      int layer, out, row;
+      double error = 0.0;
+      double diff;
+
+      System.arraycopy(input, 0, act[0], 0, layers[0]);
+      for (layer = 1; layer <= last; layer++)
       {
-         theta = new double[numLayers][maxLayerSize];
-         psi = new double[numLayers][maxLayerSize]; 
+         gemv(act[layer - 1], layers[layer - 1], w[layer], th[layer], layers[layer]);
+         if (layer == last && softmaxHead)
+         {
+            softmax(th[layer], act[layer], layers[layer]);
+            break;
+         }
+         for (out = 0; out < layers[layer]; out++)
+         {
+            act[layer][out] = activationFunction(th[layer][out]);
+         }
+      } // for (layer = 1; layer <= last; layer++)
+
+      if (softmaxHead)
+      {
+         error = crossEntropy(target, act[last], layers[last]);
+         for (out = 0; out < layers[last]; out++)
+         {
+            ps[last][out] = target[out] - act[last][out];
+         }
       }
-   } // allocateArrayMemory()
+      else
+      {
+         for (out = 0; out < layers[last]; out++)
+         {
+            diff = target[out] - act[last][out];
+            error += diff * diff * 0.5;
+            ps[last][out] = diff * derivativeActivationFunction(th[last][out]);
+         }
+      } // if (softmaxHead)...else
+
+      for (layer = last - 1; layer > 0; layer--)
+      {
+         backpropLayer(w[layer + 1], act[layer], layers[layer], ps[layer + 1], layers[layer + 1], stepLambda, ps[layer]);
+         for (row = 0; row < layers[layer]; row++)
+         {
+            ps[layer][row] *= derivativeActivationFunction(th[layer][row]);
+         }
+      }
+      backpropLayer(w[1], act[0], layers[0], ps[1], layers[1], stepLambda, null);
+      return error;
+   } // backpropCase(double[][][] w, int[] layers, double stepLambda, double[][] act, double[][] th, double[][] ps, ...)
 
 /*
- * Inserts training values into test case and target output arrays by reading in the config file. 
- * Then, either loads, randomizes, or manually sets the weights based on the associated boolean values.
+ * Trains a trial until it has run targetIters iterations in total or its error reaches its threshold. Only the
+ * trial's own arrays are touched, so trials can train concurrently.
+ * 
+ * @param trial       the trial to train
+ * @param targetIters total number of iterations the trial should reach
  */
-   public static void populateArrays()
+   public static void trainTrial(Trial trial, int targetIters)
    {
-      try 
+      int tCase;
+      double error;
+
+      while (!trial.converged && trial.iters < targetIters)
       {
-         BufferedReader testActivations;
-         String line;
-         String[] values;
-         if (willTrain)
-         {
-            for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++) 
-            {
-               tCaseActivationFileName = "TestCases/" + (tCaseIter % 5 + 1) + "-" + (tCaseIter / (numTestCases / 5) + 1) + ".txt";
-               // System.out.println("Getting activations from " + tCaseActivationFileName);
-               testActivations = new BufferedReader(new FileReader(tCaseActivationFileName));
-               line = testActivations.readLine();
-               values = line.trim().split("\\s+");
-               for (m = 0; m < nLayers[inLayer]; m++) {
-                  testCases[tCaseIter][m] = Double.parseDouble(values[m]);
-                  // if (tCaseIter == 1 && testCases[tCaseIter][m] != 0.0)
-                  //    System.out.print(testCases[tCaseIter][m]);
-               }
-               testActivations.close();
+         error = 0.0;
+         for (tCase = 0; tCase < numTestCases; tCase++)
+         {
+            error += backpropCase(trial.weights, trial.layers, trial.lambda, trial.activations, trial.theta, trial.psi, 
+                  testCases[tCase], targetOutput[tCase]);
+         }
+
+         trial.error = error / (double) numTestCases;
+         trial.iters++;
+         trial.converged = trial.error <= trial.errorThreshold;
+      } // while (!trial.converged && trial.iters < targetIters)
+   } // trainTrial(Trial trial, int targetIters)
+
+/*
+ * Runs the hyperparameter sweep with successive halving. All trials are trained in parallel for sweepRungIters
+ * iterations, then only the best 1 / sweepEta of them are kept and their budget is multiplied by sweepEta, until one
+ * trial is left or the budget reaches maxIters. Converged trials always rank ahead, so they are never cut.
+ */
+   public static void runSweep()
+   {
+      List<Trial> trials = createSweepTrials();
+      List<Trial> alive = new ArrayList<>(trials);
+      List<Future<?>> running = new ArrayList<>();
+      Comparator<Trial> byError = Comparator.comparingDouble(t -> t.error);
+      int threads = sweepThreads > 0 ? sweepThreads : Runtime.getRuntime().availableProcessors();
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      int budget = Math.min(Math.max(sweepRungIters, 1), maxIters);
+      int rung = 0;
+      int keep;
+
+      System.out.println("Sweeping " + trials.size() + " trials on " + threads + " threads.");
+      try
+      {
+         while (true)
+         {
+            final int rungBudget = budget;
+            running.clear();
+            for (Trial trial : alive)
+            {
+               running.add(pool.submit(() -> trainTrial(trial, rungBudget)));
+            }
+            for (Future<?> future : running)
+            {
+               future.get();
+            }
+
+            alive.sort(byError);
+            System.out.printf("Rung %d: %d trials at %d iterations, best error = %f\n", rung, alive.size(), budget, 
+                  alive.get(0).error);
+            if (alive.size() <= 1 || budget >= maxIters)
+            {
+               break;
+            }
 
+            keep = Math.max(1, alive.size() / Math.max(sweepEta, 2));
+            for (Trial trial : alive.subList(keep, alive.size()))
+            {
+               trial.stoppedAtRung = rung;
             }
+            alive = new ArrayList<>(alive.subList(0, keep));
+            budget = (int) Math.min((long) budget * Math.max(sweepEta, 2), maxIters);
+            rung++;
+         } // while (true)
+      } // try
+      catch (Exception e)
+      {
+         e.printStackTrace();
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+
+      trials.sort(Comparator.comparingInt((Trial t) -> t.stoppedAtRung == -1 ? Integer.MAX_VALUE : t.stoppedAtRung)
+            .reversed().thenComparing(byError));
+      reportSweep(trials);
+   } // runSweep()
+
+/*
+ * Prints the ranked sweep results and writes them as a tab separated table to sweepResultsFileName.
+ * 
+ * @param trials trials in ranked order
+ */
+   public static void reportSweep(List<Trial> trials)
+   {
+      String status;
+      int rank = 1;
+      System.out.println("----------------------------------------------");
+      System.out.println(ANSI_BOLD + "Rank | netConfig | lambda | weight range | error threshold | iterations | error | status"
+            + ANSI_RESET);
+
+      try (PrintWriter writer = new PrintWriter(new FileWriter(sweepResultsFileName)))
+      {
+         writer.println("rank\tnetConfig\tlambda\trandomRange\terrorThreshold\titerations\terror\tstatus");
+         for (Trial trial : trials)
+         {
+            status = trial.converged ? "converged" 
+                  : (trial.stoppedAtRung == -1 ? "finished" : "cut at rung " + trial.stoppedAtRung);
+            System.out.printf("%d | %s | %.4f | %.4f | %.6f | %d | %.6f | %s\n", rank, trial.netConfig, trial.lambda, 
+                  trial.randomRange, trial.errorThreshold, trial.iters, trial.error, status);
+            writer.printf("%d\t%s\t%f\t%f\t%f\t%d\t%f\t%s\n", rank, trial.netConfig, trial.lambda, trial.randomRange, 
+                  trial.errorThreshold, trial.iters, trial.error, status);
+            rank++;
          }
-         else
+         System.out.println("Sweep results have been written to " + sweepResultsFileName);
+      } // try (PrintWriter writer = new PrintWriter(new FileWriter(sweepResultsFileName)))
+      catch (IOException e) 
+      {
+         System.err.println("Error writing to file: " + e.getMessage());
+      }
+      System.out.println("----------------------------------------------");
+   } // reportSweep(List<Trial> trials)
+
+/*
+ * Sends every weight of the network, in the same [alpha][gamma][beta] order as the weights file.
+ * 
+ * @param out stream to the other process
+ * @param w   weights to send
+ * @throws IOException if the connection fails
+ */
+   public static void writeWeights(DataOutputStream out, double[][][] w) throws IOException
+   {
+      int layer, row, col;
+      for (layer = 1; layer < numLayers; layer++)
+      {
+         for (row = 0; row < nLayers[layer - 1]; row++)
          {
-            for (tCaseIter = 0; tCaseIter < numTestCases/5; tCaseIter++) 
-            {
-               tCaseActivationFileName = "TestCases/" + runningNum + "-" + (tCaseIter + 1) + ".txt";
-               // System.out.println(tCaseActivationFileName);
-               testActivations = new BufferedReader(new FileReader(tCaseActivationFileName));
-               line = testActivations.readLine();
-               values = line.trim().split("\\s+");
-               for (m = 0; m < nLayers[inLayer]; m++) {
-                  testCases[tCaseIter][m] = Double.parseDouble(values[m]);
-                  // if (tCaseIter == 1 && testCases[tCaseIter][m] != 0.0)
-                  //    System.out.print(testCases[tCaseIter][m]);
-               }
-               testActivations.close();
+            for (col = 0; col < nLayers[layer]; col++)
+            {
+               out.writeDouble(w[layer][row][col]);
+            }
+         }
+      }
+      out.flush();
+   } // writeWeights(DataOutputStream out, double[][][] w)
+
+/*
+ * Receives every weight of the network as sent by writeWeights(), either replacing w or adding scale times each
+ * received weight to it.
+ * 
+ * @param in         stream from the other process
+ * @param w          weights to fill in
+ * @param scale      factor applied to each received weight
+ * @param accumulate adds to w if true, overwrites it otherwise
+ * @throws IOException if the connection fails
+ */
+   public static void readWeights(DataInputStream in, double[][][] w, double scale, boolean accumulate) throws IOException
+   {
+      int layer, row, col;
+      for (layer = 1; layer < numLayers; layer++)
+      {
+         for (row = 0; row < nLayers[layer - 1]; row++)
+         {
+            for (col = 0; col < nLayers[layer]; col++)
+            {
+               w[layer][row][col] = (accumulate ? w[layer][row][col] : 0.0) + scale * in.readDouble();
+            }
+         }
+      }
+   } // readWeights(DataInputStream in, double[][][] w, double scale, boolean accumulate)
+
+/*
+ * Trains the network across several worker processes with synchronous weight averaging. The coordinator waits for
+ * numWorkers workers on coordinatorPort, then each round it sends the current weights to every worker, lets each one
+ * train averagingInterval iterations on its own shard, and replaces the weights with the average of the returned
+ * weights, weighted by shard size out of distributedCases. Training stops under the same conditions as train(). The
+ * coordinator holds no test cases itself.
+ */
+   public static void runCoordinator()
+   {
+      Socket[] sockets = new Socket[numWorkers];
+      DataInputStream[] ins = new DataInputStream[numWorkers];
+      DataOutputStream[] outs = new DataOutputStream[numWorkers];
+      int[] shardCases = new int[numWorkers];
+      double[] shardErrors = new double[numWorkers];
+      int worker;
+
+      totalIters = 0;
+      isTrainingDone = false;
+      try (ServerSocket server = new ServerSocket(coordinatorPort, numWorkers, InetAddress.getByName(coordinatorHost)))
+      {
+         for (worker = 0; worker < numWorkers; worker++)
+         {
+            sockets[worker] = server.accept();
+            ins[worker] = new DataInputStream(new BufferedInputStream(sockets[worker].getInputStream()));
+            outs[worker] = new DataOutputStream(new BufferedOutputStream(sockets[worker].getOutputStream()));
+            System.out.println("Worker connected from " + sockets[worker].getRemoteSocketAddress());
+         }
+
+         while (!isTrainingDone)
+         {
+            for (worker = 0; worker < numWorkers; worker++)
+            {
+               outs[worker].writeBoolean(true);
+               writeWeights(outs[worker], weights);
+            }
+
+            totalError = 0.0;
+            for (worker = 0; worker < numWorkers; worker++)        // every worker trains while the others are read
+            {
+               shardCases[worker] = ins[worker].readInt();
+               shardErrors[worker] = ins[worker].readDouble();
+               readWeights(ins[worker], weights, (double) shardCases[worker] / (double) distributedCases, worker > 0);
+               totalError += shardErrors[worker];
+            }
 
+            averageError = totalError / (double) distributedCases;
+            totalIters += averagingInterval;
+            isTrainingDone = totalIters >= maxIters || averageError <= errorThreshold;
+
+            if (keepAlive != 0 && totalIters % keepAlive < averagingInterval)
+            {
+               logProgress(totalIters, averageError);
             }
+         } // while (!isTrainingDone)
+         flushLog();
+
+         for (worker = 0; worker < numWorkers; worker++)
+         {
+            outs[worker].writeBoolean(false);
+            outs[worker].flush();
+            sockets[worker].close();
          }
+      } // try (ServerSocket server = ...)
+      catch (IOException e)
+      {
+         System.err.println("Error coordinating workers: " + e.getMessage());
+      }
+   } // runCoordinator()
+
+/*
+ * Runs this process as one worker of a distributed training run. The worker connects to the coordinator, retrying
+ * while it starts up, and then for every round receives the weights, trains averagingInterval iterations on the test
+ * cases in its shard, which are the only ones it loaded, and sends back its shard size, the error from its last
+ * iteration and its weights.
+ */
+   public static void runWorker()
+   {
+      Socket socket = null;
+      int attempts, epoch, shardCases;
+
+      trainingInputs = testCases;
+      try
+      {
+         for (attempts = 0; socket == null; attempts++)
+         {
+            try
+            {
+               socket = new Socket(coordinatorHost, coordinatorPort);
+            }
+            catch (IOException e)
+            {
+               if (attempts >= 100)
+               {
+                  throw e;
+               }
+               Thread.sleep(100);
+            }
+         } // for (attempts = 0; socket == null; attempts++)
+
+         DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+         while (in.readBoolean())
+         {
+            readWeights(in, weights, 1.0, false);
+            shardCases = 0;
+            for (epoch = 0; epoch < averagingInterval; epoch++)
+            {
+               totalError = 0.0;
+               shardCases = 0;
+               for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++)
+               {
+                  trainSingleCase();
+                  shardCases++;
+               }
+            }
+
+            out.writeInt(shardCases);
+            out.writeDouble(totalError);
+            writeWeights(out, weights);
+         } // while (in.readBoolean())
+
+         socket.close();
+         System.out.println("Worker " + workerId + " has finished training.");
       } // try
-      catch (IOException e) 
+      catch (IOException | InterruptedException e)
+      {
+         System.err.println("Error talking to the coordinator: " + e.getMessage());
+      }
+   } // runWorker()
+
+/*
+ * Trains with lock-free asynchronous SGD in the style of Hogwild. Each iteration, hogwildThreads threads take 
+ * interleaved test cases and run backpropCase() on the shared weights array with no synchronization at all, each with
+ * its own activation, theta and psi buffers. Updates can overwrite each other, but with the mostly zero image inputs
+ * few cases touch the same first-layer rows, so little is lost, and there is no reduction step. Threads only wait for
+ * each other at the end of each iteration to check the stopping conditions, which are the same as train(). Since the
+ * interleaving of updates depends on scheduling, results are not repeatable even with a fixed randomSeed.
+ */
+   public static void trainHogwild()
+   {
+      ExecutorService pool = Executors.newFixedThreadPool(hogwildThreads);
+      List<Future<Double>> running = new ArrayList<>();
+      double[][][] act = new double[hogwildThreads][numLayers][maxLayerSize];
+      double[][][] th = new double[hogwildThreads][numLayers][maxLayerSize];
+      double[][][] ps = new double[hogwildThreads][numLayers][maxLayerSize];
+      long start = System.nanoTime();
+      double seconds;
+
+      totalIters = 0;
+      isTrainingDone = false;
+      try
+      {
+         while (!isTrainingDone)
+         {
+            running.clear();
+            for (int thread = 0; thread < hogwildThreads; thread++)
+            {
+               final int first = thread;
+               running.add(pool.submit(() ->
+               {
+                  double error = 0.0;
+                  for (int tCase = first; tCase < numTestCases; tCase += hogwildThreads)
+                  {
+                     error += backpropCase(weights, nLayers, lambda, act[first], th[first], ps[first], testCases[tCase],
+                           targetOutput[tCase]);
+                  }
+                  return error;
+               }));
+            } // for (int thread = 0; thread < hogwildThreads; thread++)
+
+            totalError = 0.0;
+            for (Future<Double> future : running)
+            {
+               totalError += future.get();
+            }
+
+            averageError = totalError / (double) numTestCases;
+            totalIters++;
+            isTrainingDone = totalIters >= maxIters || averageError <= errorThreshold;
+
+            if (keepAlive != 0 && totalIters % keepAlive == 0)
+            {
+               logProgress(totalIters, averageError);
+            }
+         } // while (!isTrainingDone)
+         flushLog();
+      } // try
+      catch (Exception e)
       {
          e.printStackTrace();
       }
+      finally
+      {
+         pool.shutdown();
+      }
+
+      seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("Hogwild training ran %d iterations in %.3f s (%.1f cases per second).\n", totalIters, seconds,
+            totalIters * numTestCases / seconds);
+   } // trainHogwild()
+
+/*
+ * Trains the network both ways from the same starting weights, first with trainHogwild() on a single thread and then
+ * with hogwildThreads threads, and prints the iterations, final error and throughput of each. Both runs take the same
+ * per-case step, backpropCase(), and measure error the same way, so only the threading differs. The run fails its
+ * checks when Hogwild's final error is more than hogwildTolerance above the single thread's. The Hogwild weights are
+ * kept.
+ */
+   public static void compareHogwild()
+   {
+      double[][][] startWeights = new double[numLayers][][];
+      long start;
+      double serialSeconds, hogwildSeconds, serialError;
+      int serialIters, threads = hogwildThreads;
+
+      startWeights[inLayer] = weights[inLayer];
+      for (alpha = 1; alpha < numLayers; alpha++)
+      {
+         startWeights[alpha] = new double[nLayers[alpha - 1]][];
+         for (gamma = 0; gamma < nLayers[alpha - 1]; gamma++)
+         {
+            startWeights[alpha][gamma] = weights[alpha][gamma].clone();
+         }
+      }
+
+      hogwildThreads = 1;
+      start = System.nanoTime();
+      trainHogwild();
+      serialSeconds = (System.nanoTime() - start) / 1e9;
+      serialIters = totalIters;
+      serialError = averageError;
 
-      try {
-         properties.load(new FileInputStream(configFileName));
+      hogwildThreads = threads;
+      weights = startWeights;
+      start = System.nanoTime();
+      trainHogwild();
+      hogwildSeconds = (System.nanoTime() - start) / 1e9;
+
+      System.out.println("----------------------------------------------");
+      System.out.printf("Single thread: %d iterations, error %f, %.1f cases per second\n", serialIters, serialError, 
+            serialIters * numTestCases / serialSeconds);
+      System.out.printf("Hogwild (%d threads): %d iterations, error %f, %.1f cases per second\n", hogwildThreads, totalIters, 
+            averageError, totalIters * numTestCases / hogwildSeconds);
+
+      if (averageError > serialError * (1.0 + hogwildTolerance))
+      {
+         failedChecks.add("Hogwild's final error " + averageError + " is more than " + hogwildTolerance 
+               + " above the single thread's " + serialError + ".");
       }
-      catch (IOException e) 
+   } // compareHogwild()
+
+/*
+ * Makes a deep copy of a set of weights.
+ * 
+ * @param w weights to copy, indexed [alpha][gamma][beta]
+ * @return double[][][] the copy
+ */
+   public static double[][][] copyWeights(double[][][] w)
+   {
+      double[][][] copy = new double[w.length][][];
+      for (int layer = 0; layer < w.length; layer++)
       {
-         // System.out.println("didnt work");
-         e.printStackTrace();
+         copy[layer] = new double[w[layer].length][];
+         for (int row = 0; row < w[layer].length; row++)
+         {
+            copy[layer][row] = w[layer][row].clone();
+         }
       }
-      for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++) 
+      return copy;
+   } // copyWeights(double[][][] w)
+
+/*
+ * Starts learning online. Inference switches to reading an atomic snapshot of the weights, and a background thread
+ * takes labelled samples from a bounded queue and applies one SGD step with onlineLambda for each, to its own copy
+ * of the weights. Every onlinePublishInterval steps, a copy of the learner's weights is published as the new snapshot,
+ * so inference never sees a half-updated model and is never blocked by the learner.
+ */
+   public static void startOnlineLearning()
+   {
+      servingWeights = new AtomicReference<>(weights);
+      onlineWeights = copyWeights(weights);
+      onlineSamples = new ArrayBlockingQueue<>(onlineQueueSize);
+      onlineStopping = false;
+      onlineStepsTaken = 0;
+
+      onlineLearner = new Thread(() ->
       {
-         if (willTrain)
+         double[][] act = new double[numLayers][maxLayerSize];
+         double[][] th = new double[numLayers][maxLayerSize];
+         double[][] ps = new double[numLayers][maxLayerSize];
+         double[][] sample;
+         try
          {
-            for (i = 0; i < nLayers[outLayer]; i++) {
-               targetOutput[tCaseIter][i] = Double
-                     .parseDouble(properties.getProperty("targetOutput_" + tCaseIter + "_" + i));
-            }
+            while (!onlineStopping || !onlineSamples.isEmpty())
+            {
+               sample = onlineSamples.poll(100, TimeUnit.MILLISECONDS);
+               if (sample != null)
+               {
+                  backpropCase(onlineWeights, nLayers, onlineLambda, act, th, ps, sample[0], sample[1]);
+                  onlineStepsTaken++;
+                  if (onlineStepsTaken % onlinePublishInterval == 0)
+                  {
+                     publishModel(copyWeights(onlineWeights));
+                  }
+               }
+            } // while (!onlineStopping || !onlineSamples.isEmpty())
+         } // try
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
          }
-         else 
+         publishModel(copyWeights(onlineWeights));
+      }, "online-learner");
+      onlineLearner.setDaemon(true);
+      onlineLearner.start();
+   } // startOnlineLearning()
+
+/*
+ * Makes a set of weights the one inference reads and moves on to a new model version. Cached results of older
+ * versions can no longer be found, and the cache is emptied so they do not take up its slots.
+ * 
+ * @param w weights to serve, which must not be changed afterwards
+ */
+   public static void publishModel(double[][][] w)
+   {
+      synchronized (PUBLISH_LOCK)
+      {
+         servingWeights.set(w);
+         modelVersion++;
+      }
+      clearCache();
+   } // publishModel(double[][][] w)
+
+/*
+ * Hands a labelled sample to the online learner. The queue is bounded, so when the learner falls behind, new
+ * samples are refused instead of piling up.
+ * 
+ * @param input  input activations of the sample
+ * @param target target outputs of the sample
+ * @return boolean true if the sample was queued
+ */
+   public static boolean submitSample(double[] input, double[] target)
+   {
+      return onlineSamples.offer(new double[][] {input, target});
+   } // submitSample(double[] input, double[] target)
+
+/*
+ * Stops the online learner once it has worked through the queued samples, and makes its final weights the
+ * network's weights so they are reported and saved.
+ */
+   public static void stopOnlineLearning()
+   {
+      onlineStopping = true;
+      try
+      {
+         onlineLearner.join();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      weights = servingWeights.get();
+      System.out.println("The online learner took " + onlineStepsTaken + " steps.");
+   } // stopOnlineLearning()
+
+/*
+ * Runs the deployed model with online learning: the labelled cases are streamed to the learner onlineRounds times
+ * while every case keeps being classified from the current snapshot, then the learner is stopped.
+ */
+   public static void runOnlineLearning()
+   {
+      double[] output = new double[nLayers[outLayer]];
+      int round, tCase, refused = 0;
+
+      startOnlineLearning();
+      for (round = 0; round < onlineRounds; round++)
+      {
+         for (tCase = 0; tCase < numTestCases; tCase++)
          {
-            for (i = 0; i < nLayers[outLayer]; i++) {
-               targetOutput[tCaseIter][i] = Double
-                     .parseDouble(properties.getProperty("targetOutput_" + (tCaseIter * 5 + 1) + "_" + i));
+            if (!submitSample(testCases[tCase], targetOutput[tCase]))
+            {
+               refused++;
             }
+            runInference(testCases[tCase], output);
          }
       }
+      stopOnlineLearning();
 
-      if (useRandomWeights)
-      {
-         populateWeightsRandom();
-      }
-      else if (useLoadedWeights)
+      if (refused > 0)
       {
-         loadWeights();
+         System.out.println(refused + " samples were refused because the learner was behind.");
       }
-      else      // sets weights with default value
-      {
-         for (alpha = 1; alpha < numLayers; alpha++)
-         {
-            for (gamma = 0; gamma < nLayers[alpha - 1]; gamma++)
-            {
-               for (beta = 0; beta < nLayers[alpha]; beta++)
-               {
-                  weights[alpha][gamma][beta] = defaultWeightVal;
-               }
-            }
-         } // for (alpha = 1; alpha < numLayers; alpha++)
+   } // runOnlineLearning()
 
-      } // else if (useLoadedWeights)...else
+/*
+ * Gives the weights file a served model is reloaded from: the binary checkpoint if there is one, the text file
+ * otherwise.
+ * 
+ * @return String name of the weights file
+ */
+   public static String servedWeightsFileName()
+   {
+      return binaryWeightsFileName.isEmpty() ? weightsFileName : binaryWeightsFileName;
+   } // servedWeightsFileName()
 
-   } // populateArrays()
-   
 /*
- * Randomly generates weight values within the min and max threshold values.
+ * Reads the weights file of a fully connected network into a new set of weight arrays.
+ * 
+ * @param fileName name of the weights file
+ * @param layers   size of every layer of the network, including the input layer
+ * @return double[][][] the weights, indexed [alpha][gamma][beta]
+ * @throws IOException if the file cannot be read or does not match the layers
  */
-   public static void populateWeightsRandom()
+   public static double[][][] readWeightsFile(String fileName, int[] layers) throws IOException
    {
-      for (alpha = 1; alpha < numLayers; alpha++)
+      int[] rows = new int[layers.length];
+      int[] cols = new int[layers.length];
+      for (int layer = 1; layer < layers.length; layer++)
       {
-         for (gamma = 0; gamma < nLayers[alpha - 1]; gamma++)
-         {
-            for (beta = 0; beta < nLayers[alpha]; beta++)
-            {
-               weights[alpha][gamma][beta] = generateRandWeight();
-            }
-         }
-      } // for (alpha = 1; alpha < numLayers; alpha++)
-   } // populateWeightsRandom()
+         rows[layer] = layers[layer - 1];
+         cols[layer] = layers[layer];
+      }
+      return readWeightsFile(fileName, layers, rows, cols);
+   } // readWeightsFile(String fileName, int[] layers)
 
 /*
- * Trains the model by optimizing weights, applying a delta each iteration. 
- * This method uses trains with backpropogation until either the max iterations or error threshold 
- * has been reached. 
+ * Reads a weights file into a new set of weight arrays without touching the network's own weights. Binary
+ * checkpoints are recognized by their magic number and anything else is read as a text file in the format of
+ * saveWeights(). Either way, the file must match the layer sizes and weight shapes exactly.
+ * 
+ * @param fileName name of the weights file
+ * @param layers   size of every layer of the network, including the input layer
+ * @param rows     rows of each layer's weight matrix
+ * @param cols     columns of each layer's weight matrix
+ * @return double[][][] the weights, indexed [alpha][gamma][beta]
+ * @throws IOException if the file cannot be read or does not match the layers
  */
-   public static void train()
+   public static double[][][] readWeightsFile(String fileName, int[] layers, int[] rows, int[] cols) throws IOException
    {
-      totalIters = 0;
-      isTrainingDone = false;
+      int layer, row, col;
+      long weightCount = 0;
+      double[][][] w = new double[layers.length][][];
+      w[0] = new double[0][0];
+      for (layer = 1; layer < layers.length; layer++)
+      {
+         w[layer] = new double[rows[layer]][cols[layer]];
+         weightCount += (long) rows[layer] * cols[layer];
+      }
 
-      while (!isTrainingDone)
+      try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ))
       {
-         totalError = 0.0;
-         for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++) // loop through all test cases
+         ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+         while (magic.hasRemaining() && channel.read(magic) >= 0);
+         magic.flip();
+
+         if (magic.remaining() == Integer.BYTES && magic.getInt() == WEIGHTS_MAGIC)
          {
-            for (m = 0; m < nLayers[inLayer]; m++)                  // place test cases in input activations array
+            channel.position(0);
+            readWeightsHeader(channel, fileName, layers);
+            if (channel.size() != weightsHeaderBytes(layers.length) + weightCount * Double.BYTES)
             {
-               activations[inLayer][m] = testCases[tCaseIter][m];
+               throw new IOException(fileName + " does not hold the expected number of weights.");
             }
+            readWeightRows(channel, w, rows, cols);
+            return w;
+         } // if (magic.remaining() == Integer.BYTES && magic.getInt() == WEIGHTS_MAGIC)
+      } // try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ))
 
-            for (alpha = 1; alpha < numLayers - 1; alpha++)
-            {
-               for (beta = 0; beta < nLayers[alpha]; beta++)
-               {
-                  theta[alpha][beta] = 0.0;
-                  for (gamma = 0; gamma < nLayers[alpha - 1]; gamma++) 
-                  {
-                     theta[alpha][beta] += activations[alpha - 1][gamma] * weights[alpha][gamma][beta];
-                  }
-                  activations[alpha][beta] = activationFunction(theta[alpha][beta]);
-               }
-            } // for (alpha = 1; alpha < numLayers; alpha++)
-
-            alpha = outLayer;
-            for (beta = 0; beta < nLayers[alpha]; beta++)           // separate loop for output layer
+      try (BufferedReader reader = new BufferedReader(new FileReader(fileName)))
+      {
+         String line;
+         String[] values;
+         for (layer = 1; layer < layers.length; layer++)
+         {
+            for (row = 0; row < rows[layer]; row++)
             {
-               theta[alpha][beta] = 0.0;
-               for (gamma = 0; gamma < nLayers[alpha - 1]; gamma++) 
+               line = reader.readLine();
+               values = line == null ? new String[0] : line.trim().split("\\s+");
+               if (values.length != cols[layer])
                {
-                  theta[alpha][beta] += activations[alpha - 1][gamma] * weights[alpha][gamma][beta];
+                  throw new IOException(fileName + " has " + values.length + " weights in row " + row + " of layer " 
+                        + layer + " instead of " + cols[layer] + ".");
                }
-               activations[alpha][beta] = activationFunction(theta[alpha][beta]);
-               psi[alpha][beta] = 
-                  (targetOutput[tCaseIter][beta] - activations[alpha][beta]) * derivativeActivationFunction(theta[alpha][beta]);
-            } // for (beta = 0; beta < nLayers[alpha]; beta++)
-  
-/*
- * Performs weight optimization using backpropogation.
- */
-            double omegaSum;
-            for (alpha = outLayer - 1; alpha > inLayer; alpha--)
-            {
-               for (gamma = 0; gamma < nLayers[alpha]; gamma++)
+               for (col = 0; col < cols[layer]; col++)
                {
-                  omegaSum = 0;
-                  for (beta = 0; beta < nLayers[alpha + 1]; beta++) 
-                  {
-                     omegaSum += psi[alpha + 1][beta] * weights[alpha + 1][gamma][beta];
-                     weights[alpha + 1][gamma][beta] += lambda * activations[alpha][gamma] * psi[alpha + 1][beta];
-                  }
-
-                  psi[alpha][gamma] = omegaSum * derivativeActivationFunction(theta[alpha][gamma]);
+                  w[layer][row][col] = Double.parseDouble(values[col]);
                }
-            } // for (alpha = outLayer - 1; alpha > 0; alpha--) 
-
-            alpha = inLayer;
-            for (gamma = 0; gamma < nLayers[alpha]; gamma++)
+            } // for (row = 0; row < rows[layer]; row++)
+            line = reader.readLine();
+            if (line == null || !line.trim().isEmpty())
             {
-               for (beta = 0; beta < nLayers[alpha + 1]; beta++) 
-               {
-                  weights[alpha + 1][gamma][beta] += lambda * activations[alpha][gamma] * psi[alpha + 1][beta];
-               }
+               throw new IOException(fileName + " has a different number of rows in layer " + layer + ".");
             }
+         } // for (layer = 1; layer < layers.length; layer++)
 
-            runSingleOutput();
-            calculateError();
-         } // for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++)
-
-         averageError = totalError / (double) numTestCases;
-         totalIters++;
-         isTrainingDone = totalIters >= maxIters || averageError <= errorThreshold;
-
-         if (keepAlive != 0 && totalIters % keepAlive == 0)
+         while ((line = reader.readLine()) != null)
          {
-            System.out.printf("Iteration %d, Error = %f\n", totalIters, averageError);
+            if (!line.trim().isEmpty())
+            {
+               throw new IOException(fileName + " has more layers than the network.");
+            }
          }
-
-      } // while (!isTrainingDone)
-   } // train()
+      } // try (BufferedReader reader = new BufferedReader(new FileReader(fileName)))
+      catch (NumberFormatException e)
+      {
+         throw new IOException(fileName + " holds a weight that is not a number.", e);
+      }
+      return w;
+   } // readWeightsFile(String fileName, int[] layers, int[] rows, int[] cols)
 
 /*
- * Runs a single case for its output. There is no need for truth tables to run this method.
+ * Loads a new model in the calling thread and swaps it in for inference. The weights are read and checked against
+ * nLayers, then run through reloadWarmupPasses forward passes on a private workspace so that their pages are touched
+ * and the kernels are compiled before any request sees them. The swap itself is one atomic write: requests already
+ * running finish on the model they started with, and the old arrays are freed by the garbage collector once the
+ * last of them lets go. If anything goes wrong, the model being served is kept. Only one reload runs at a time, and
+ * it holds its own lock, so inference is never waiting on it.
+ * 
+ * @param fileName name of the weights file to load
+ * @return boolean true if the new model is now being served
  */
-   public static void runSingleOutput()
+   public static boolean reloadModel(String fileName)
    {
-      double thetaSum = 0.0;
-      for (alpha = 1; alpha < numLayers; alpha++)
+      synchronized (RELOAD_LOCK)
       {
-         for (beta = 0; beta < nLayers[alpha]; beta++)
+         long start = System.nanoTime();
+         double[][][] w;
+         try
+         {
+            w = readWeightsFile(fileName, nLayers, weightRows, weightCols);
+         }
+         catch (IOException e)
          {
-            thetaSum = 0.0;
-            for (gamma = 0; gamma < nLayers[alpha - 1]; gamma++) 
+            System.err.println("Keeping the current model: " + e.getMessage());
+            return false;
+         }
+
+         double[][] workspace = new double[numLayers][maxLayerSize];
+         for (int pass = 0; pass < reloadWarmupPasses; pass++)
+         {
+            if (numTestCases > 0)         // a distributed coordinator has no cases, so it warms up on a zero input
             {
-               thetaSum += activations[alpha - 1][gamma] * weights[alpha][gamma][beta];
+               System.arraycopy(testCases[pass % numTestCases], 0, workspace[0], 0, nLayers[inLayer]);
             }
-            activations[alpha][beta] = activationFunction(thetaSum);
+            forwardPass(w, workspace);
          }
-      } // for (alpha = 1; alpha < numLayers; alpha++)
 
-   } // runSingleOutput()
+         publishModel(w);
+         weights = w;
+         System.out.println("Model " + modelVersion + " is now being served from " + fileName + " after " 
+               + (System.nanoTime() - start) / 1000000 + "ms.");
+         return true;
+      } // synchronized (RELOAD_LOCK)
+   } // reloadModel(String fileName)
 
-/**
- * Runs network for output by filling activations and running each case individually.
- * Does not require target outputs, simply runs the network.
+/*
+ * Starts a daemon thread that checks the served weights file every reloadPollMillis and reloads the model in the
+ * background whenever the file's modification time changes. A model push should write the new file elsewhere and
+ * rename it over the old one, so the watcher never sees a half-written file.
  */
-   public static void runNetworkOutput()
+   public static void startModelWatcher()
    {
-      for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++)
+      Path path = Paths.get(servedWeightsFileName());
+      modelWatcher = new Thread(() ->
       {
-         for (m = 0; m < nLayers[inLayer]; m++) // place test cases in input activations array
+         long lastModified = lastModifiedMillis(path);
+         long modified;
+         try
          {
-            activations[inLayer][m] = testCases[tCaseIter][m];
-         }
-
-         runSingleOutput();
-
-         for (i = 0; i < nLayers[outLayer]; i++) 
+            while (true)
+            {
+               Thread.sleep(reloadPollMillis);
+               modified = lastModifiedMillis(path);
+               if (modified != lastModified && modified != 0)
+               {
+                  lastModified = modified;
+                  reloadModel(path.toString());
+               }
+            }
+         } // try
+         catch (InterruptedException e)
          {
-            calculatedOutputs[tCaseIter][i] = activations[outLayer][i];
+            Thread.currentThread().interrupt();
          }
-      } // for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++)
-
-   } // runNetworkOutput()
+      }, "model-watcher");
+      modelWatcher.setDaemon(true);
+      modelWatcher.start();
+   } // startModelWatcher()
 
 /*
- * Finds error across test cases by finding the sum of all individual errors for the test cases.
+ * Gives the modification time of a file.
+ * 
+ * @param path path of the file
+ * @return long modification time in milliseconds, 0 if the file cannot be read
  */
-   public static void calculateError()
+   public static long lastModifiedMillis(Path path)
    {
-      for (i = 0; i < nLayers[outLayer]; i++)
+      try
       {
-         totalError += Math.pow((targetOutput[tCaseIter][i] - activations[outLayer][i]), 2) * 0.5;
+         return Files.getLastModifiedTime(path).toMillis();
       }
-   } // calculateError()
+      catch (IOException e)
+      {
+         return 0;
+      }
+   } // lastModifiedMillis(Path path)
 
 /*
- * Reports results of training or running, by printing the calculated and expected values for the test cases.
- * If the model just finished training, the method also reports the reason why.
+ * Serves the model until standard input ends or reads "quit". Each line names a case file, which is classified
+ * with the model being served at that moment, printing its best topK classes, or just the best one if topK is 0, or
+ * only the output of outputNode if that is set.
+ * A line "reload <file>" loads that weights file on a background thread, so requests keep being answered while it
+ * loads and warms up.
  */
-   public static void reportResults()
+   public static void serveFromStdin()
    {
-      if (totalIters >= maxIters)
+      double[] input = new double[nLayers[inLayer]];
+      int k = Math.max(topK, 1);
+      int[] classes = new int[k];
+      double[] scores = new double[k];
+      int rank;
+      String line;
+
+      servingWeights = new AtomicReference<>(weights);
+      if (reloadPollMillis > 0)
       {
-         reasonToStopTraining = "The maximum number of iterations, " + maxIters + ", has been reached. ";
+         startModelWatcher();
       }
+      System.out.println("Serving model " + modelVersion + ". Enter a case file, \"reload <file>\" or \"quit\".");
 
-      if (averageError <= errorThreshold)
+      try
       {
-         reasonToStopTraining += "The program achieved the error cutoff in " + totalIters + " iterations. ";
+         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+         while ((line = reader.readLine()) != null && !line.trim().equals("quit"))
+         {
+            line = line.trim();
+            if (line.startsWith("reload "))
+            {
+               String fileName = line.substring("reload ".length()).trim();
+               Thread loader = new Thread(() -> reloadModel(fileName), "model-loader");
+               loader.setDaemon(true);
+               loader.start();
+            }
+            else if (!line.isEmpty())
+            {
+               try
+               {
+                  readCaseFile(line, input);
+                  if (outputNode > 0)
+                  {
+                     System.out.printf("%s -> output %d (%.3f)\n", line, outputNode, 
+                           runOutputNeuron(input, outputNode - 1));
+                     continue;
+                  }
+                  runTopK(input, k, classes, scores);
+                  System.out.print(line + " ->");
+                  for (rank = 0; rank < k; rank++)
+                  {
+                     System.out.printf(" class %d (%.3f)", classes[rank] + 1, scores[rank]);
+                  }
+                  System.out.println();
+               } // try
+               catch (IOException e)
+               {
+                  System.err.println("Could not classify " + line + ": " + e.getMessage());
+               }
+            } // else if (!line.isEmpty())
+         } // while ((line = reader.readLine()) != null && !line.trim().equals("quit"))
+      } // try
+      catch (IOException e)
+      {
+         System.err.println("Error reading from standard input: " + e.getMessage());
       }
 
-      reasonToStopTraining += "Thus, the program ended.";
-
-      System.out.println("----------------------------------------------");
-      if (willTrain)
+      if (modelWatcher != null)
       {
-         System.out.println("The network has stopped training. ");
-         System.out.println(reasonToStopTraining);
-         System.out.println("The total number of iterations is " + totalIters + ".");
-         System.out.println("Average error of the model is " + averageError + " while the error threshold was " + errorThreshold);
+         modelWatcher.interrupt();
       }
-      else
+   } // serveFromStdin()
+
+/*
+ * Starts the log writer. Training and reports only queue records in a bounded ring buffer, and a background thread
+ * takes them in batches, formats them as text or JSON lines, and writes each batch to standard output in one call.
+ * The thread that logs never waits on a slow pipe; when the buffer is full, progress records are dropped and counted.
+ */
+   public static void startLogging()
+   {
+      logRecords = new ArrayBlockingQueue<>(logBufferSize);
+      logDropped = new AtomicLong();
+      logStopping = false;
+
+      logWriter = new Thread(() ->
       {
-         System.out.println("The network has finished running. ");
-      }
+         StringBuilder batch = new StringBuilder();
+         List<CountDownLatch> markers = new ArrayList<>();
+         LogRecord record;
+         try
+         {
+            while (!logStopping || !logRecords.isEmpty())
+            {
+               record = logRecords.poll(100, TimeUnit.MILLISECONDS);
+               while (record != null)
+               {
+                  if (record.written != null)
+                  {
+                     markers.add(record.written);
+                  }
+                  else
+                  {
+                     formatLogRecord(record, batch);
+                  }
+                  record = logRecords.poll();
+               }
 
-      System.out.println("----------------------------------------------");
+               if (batch.length() > 0)
+               {
+                  System.out.print(batch);
+                  System.out.flush();
+                  batch.setLength(0);
+               }
+               for (CountDownLatch marker : markers)
+               {
+                  marker.countDown();
+               }
+               markers.clear();
+            } // while (!logStopping || !logRecords.isEmpty())
+         } // try
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+         }
+      }, "log-writer");
+      logWriter.setDaemon(true);
+      logWriter.start();
+   } // startLogging()
 
 /*
- * Prints truth tables to compare expected and calculated values.
- */     
-      System.out.println("Truth Table with expected and calculated  values.");
-      System.out.println("Inputs are labeled I, Target/Expected Outputs are marked T, and Calculated Outputs are marked F.\n");
-    
-      // for (m = 0; m < nLayers[inLayer]; m++)
-      // {
-      //    System.out.print(ANSI_BOLD + " I#" + (m+1) + " |" + ANSI_RESET);     // ANSI_BOLD bolds the text for headers
-      // }
-      
-      for (i = 0; i < nLayers[outLayer]; i++)
+ * Logs the error of the network after an iteration of training. Nothing is logged when logging is quiet, and the
+ * record is dropped rather than waited on if the log writer is behind.
+ * 
+ * @param iteration iterations trained so far
+ * @param error     average error after them
+ */
+   public static void logProgress(int iteration, double error)
+   {
+      if (quietLogging)
       {
-         System.out.print(ANSI_BOLD + "  T#" + (i+1)+ "  |" + ANSI_RESET);
+         return;
       }
-      
-      for (i = 0; i < nLayers[outLayer]; i++)
+
+      LogRecord record = new LogRecord();
+      record.event = "progress";
+      record.elapsedNanos = System.nanoTime() - startingTime;
+      record.iteration = iteration;
+      record.error = error;
+      if (logRecords == null)
       {
-         System.out.print(ANSI_BOLD + "  F#" + (i+1)+  "  |" + ANSI_RESET);
+         System.out.print(formatLogRecord(record, new StringBuilder()));
       }
-      
-      for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++)
+      else if (!logRecords.offer(record))
       {
-         System.out.println();
-         // for (m = 0; m < nLayers[inLayer]; m++) 
-         // {
-         //    System.out.print(" " + testCases[tCaseIter][m] + " |");
-         // }
-
-         for (i = 0; i < nLayers[outLayer]; i++) 
-         {
-            System.out.printf(" %.3f", targetOutput[tCaseIter][i]);
-            System.out.print(" |");
-         }
-
-         for (i = 0; i < nLayers[outLayer]; i++)
-         {
-            System.out.printf(" %.3f", calculatedOutputs[tCaseIter][i]);
-            System.out.print(" |");
-         }
-      } // for (tCaseIter = 0; tCaseIter < numTestCases; tCaseIter++)
-      System.out.println("\n----------------------------------------------");
-      
-   }  // reportResults()
+         logDropped.incrementAndGet();
+      }
+   } // logProgress(int iteration, double error)
 
 /*
- * Generates a random weight as a baseline for training.
+ * Logs a block of report text. Reports are never dropped, so this waits for room in the buffer if it is full.
  * 
- * @return double randomly generated weight value, within the bounds of the min and max thresholds
+ * @param text the report, ending in a newline
  */
-   public static double generateRandWeight()
+   public static void logReport(String text)
    {
-      return (double) (Math.random() * (randomMaxThreshold - randomMinThreshold) + randomMinThreshold);
-   }  // generateRandWeight()
+      LogRecord record = new LogRecord();
+      record.event = "report";
+      record.elapsedNanos = System.nanoTime() - startingTime;
+      record.text = text;
+      if (logRecords == null)
+      {
+         System.out.print(text);
+         return;
+      }
+
+      try
+      {
+         logRecords.put(record);
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+   } // logReport(String text)
 
 /*
- * Saves weights into a .txt file.
+ * Formats one record onto the end of a batch: as the usual console text, or as a single line of JSON with the event,
+ * the milliseconds since the run started, and the iteration and error or the report text.
+ * 
+ * @param record the record
+ * @param batch  text waiting to be written
+ * @return StringBuilder the batch
  */
-   public static void saveWeights()
+   public static StringBuilder formatLogRecord(LogRecord record, StringBuilder batch)
    {
-      try (PrintWriter writer = new PrintWriter(new FileWriter(weightsFileName))) 
+      boolean progress = record.event.equals("progress");
+      if (logFormat.equals("json"))
       {
-         for (alpha = 1; alpha < numLayers; alpha++)
+         batch.append("{\"event\": \"").append(record.event).append("\", \"elapsedMillis\": ")
+               .append(record.elapsedNanos / 1000000);
+         if (progress)
          {
-            for (gamma = 0; gamma < nLayers[alpha - 1]; gamma++)
-            {
-               for (beta = 0; beta < nLayers[alpha]; beta++)
-               {
-                  writer.print(weights[alpha][gamma][beta] + " ");
-               }
-               writer.println();
-            }
-            writer.println();
-         } // for (alpha = 1; alpha < numLayers; alpha++)
-
-         System.out.println("Array data has been written to " + weightsFileName);
-
-      } // try (PrintWriter writer = new PrintWriter(new FileWriter(weightsFileName))) 
-      catch (IOException e) 
+            batch.append(", \"iteration\": ").append(record.iteration)
+                  .append(String.format(Locale.ROOT, ", \"error\": %.6f", record.error));
+         }
+         else
+         {
+            batch.append(", \"text\": ").append(jsonString(record.text));
+         }
+         batch.append("}\n");
+      } // if (logFormat.equals("json"))
+      else if (progress)
       {
-         System.err.println("Error writing to file: " + e.getMessage());
+         batch.append(String.format("Iteration %d, Error = %f\n", record.iteration, record.error));
       }
-   } // saveWeights()
-   
+      else
+      {
+         batch.append(record.text);
+      }
+      return batch;
+   } // formatLogRecord(LogRecord record, StringBuilder batch)
+
 /*
- * Reads in and loads weights from a .txt file.
+ * Waits until every record queued so far has been written, so that anything printed directly afterwards comes after
+ * it. Only called outside the training loop.
  */
-   public static void loadWeights() 
+   public static void flushLog()
    {
-      try 
+      if (logRecords == null)
       {
-         BufferedReader reader = new BufferedReader(new FileReader(weightsFileName));
-         String[] line;
-         for (alpha = 1; alpha < numLayers; alpha++)
-         {
-            for (gamma = 0; gamma < nLayers[alpha - 1]; gamma++)
-            {
-               line = reader.readLine().trim().split("\\s+");
-               for (beta = 0; beta < nLayers[alpha]; beta++) 
-               {
-                  weights[alpha][gamma][beta] = Double.parseDouble(line[beta]);
-               }
-            }
-            reader.readLine();
-         } // for (alpha = 1; alpha < numLayers; alpha++)
+         return;
+      }
 
-         System.out.println("Array data has been loaded from " + weightsFileName);
-         reader.close();
+      LogRecord marker = new LogRecord();
+      marker.written = new CountDownLatch(1);
+      try
+      {
+         logRecords.put(marker);
+         marker.written.await();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+   } // flushLog()
 
-      } // try
-      catch (IOException e) 
+/*
+ * Stops the log writer once it has written every queued record, and says how many progress records were dropped.
+ */
+   public static void stopLogging()
+   {
+      logStopping = true;
+      try
       {
-         System.err.println("Error reading from file: " + e.getMessage());
+         logWriter.join();
       }
-   } // loadWeights()
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      if (logDropped.get() > 0)
+      {
+         System.out.println(logDropped.get() + " progress records were dropped because the log writer was behind.");
+      }
+      logRecords = null;
+   } // stopLogging()
 
 } // public class NLayer
\ No newline at end of file
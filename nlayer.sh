@@ -0,0 +1,109 @@
+#!/usr/bin/env bash
+#
+# Launcher for NLayer. Compiles NLayer.java into build/nlayer.jar when the source is newer than the jar, and runs it
+# with the AppCDS archive build/nlayer.jsa when one exists, so short inference jobs skip most of the JVM's class
+# loading and verification.
+#
+# Usage:
+#   ./nlayer.sh [run] [config]         run the network, ImageProcessingConfig.txt by default
+#   ./nlayer.sh archive [config]       run once and dump every class it loaded into build/nlayer.jsa
+#   ./nlayer.sh bench [config] [runs]  time startup to first result with and without the archive, 5 runs each
+#   ./nlayer.sh native                 build build/nlayer with GraalVM native-image, if it is installed
+#
+# Extra JVM flags can be passed in JAVA_OPTS, for example JAVA_OPTS="-XX:TieredStopAtLevel=1" for jobs too short
+# for the optimizing compiler to pay off.
+#
+
+set -euo pipefail
+
+cd "$(dirname "$0")"
+BUILD=build
+JAR=$BUILD/nlayer.jar
+ARCHIVE=$BUILD/nlayer.jsa
+JAVA_OPTS=${JAVA_OPTS:-}
+
+# CDS only archives classes loaded from jar files, so the class files are always packaged
+build_jar()
+{
+   if [ ! -f "$JAR" ] || [ NLayer.java -nt "$JAR" ]; then
+      mkdir -p "$BUILD/classes"
+      rm -f "$BUILD"/classes/*.class "$ARCHIVE"          # an archive only matches the jar it was dumped from
+      javac -d "$BUILD/classes" NLayer.java
+      jar --create --file "$JAR" --main-class NLayer -C "$BUILD/classes" .
+   fi
+}
+
+run_java()
+{
+   local share=()
+   if [ -f "$ARCHIVE" ]; then
+      share=(-XX:SharedArchiveFile="$ARCHIVE" -Xshare:auto)
+   fi
+   # shellcheck disable=SC2086
+   java $JAVA_OPTS ${share[@]+"${share[@]}"} -cp "$JAR" NLayer "$@"
+}
+
+# copy of a config with reportStartupTime on; later keys override earlier ones
+startup_config()
+{
+   local config=$1 copy
+   copy=$(mktemp "${TMPDIR:-/tmp}/nlayer-bench.XXXXXX")
+   cat "$config" > "$copy"
+   printf '\nreportStartupTime = true\n' >> "$copy"
+   echo "$copy"
+}
+
+# average of the startup to first result times printed by a number of runs
+time_runs()
+{
+   local runs=$1 config=$2
+   shift 2
+   for ((run = 0; run < runs; run++)); do
+      # shellcheck disable=SC2086
+      java $JAVA_OPTS "$@" -cp "$JAR" NLayer "$config" | sed -n 's/^Startup to first result: \([0-9]*\)ms.*/\1/p'
+   done | awk '{ total += $1; n++ } END { if (n > 0) printf "%.0fms", total / n; else printf "n/a" }'
+}
+
+command=${1:-run}
+case $command in
+   archive)
+      config=${2:-ImageProcessingConfig.txt}
+      build_jar
+      rm -f "$ARCHIVE"
+      # shellcheck disable=SC2086
+      java $JAVA_OPTS -XX:ArchiveClassesAtExit="$ARCHIVE" -cp "$JAR" NLayer "$config"
+      echo "Class data sharing archive written to $ARCHIVE"
+      ;;
+   bench)
+      config=${2:-ImageProcessingConfig.txt}
+      runs=${3:-5}
+      build_jar
+      copy=$(startup_config "$config")
+      trap 'rm -f "$copy"' EXIT
+      echo "Startup to first result over $runs runs of $config:"
+      echo "   without archive: $(time_runs "$runs" "$copy" -Xshare:off)"
+      echo "   default JDK archive: $(time_runs "$runs" "$copy" -Xshare:auto)"
+      if [ -f "$ARCHIVE" ]; then
+         echo "   with $ARCHIVE: $(time_runs "$runs" "$copy" -XX:SharedArchiveFile="$ARCHIVE" -Xshare:auto)"
+      else
+         echo "   no $ARCHIVE yet, run ./nlayer.sh archive first"
+      fi
+      ;;
+   native)
+      if ! command -v native-image > /dev/null; then
+         echo "native-image was not found; install GraalVM and put its bin directory on PATH." >&2
+         exit 1
+      fi
+      build_jar
+      native-image --no-fallback -cp "$JAR" NLayer "$BUILD/nlayer"
+      echo "Native executable written to $BUILD/nlayer"
+      ;;
+   run)
+      build_jar
+      run_java "${@:2}"
+      ;;
+   *)
+      build_jar
+      run_java "$@"
+      ;;
+esac